@@ -5,15 +5,51 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-/** A thin client to interact with the {@link SchedulerServer} */
+/**
+ * A thin client to interact with the {@link SchedulerServer}
+ * <p>
+ * After {@link #subscribe()}, the statuses are pushed by the server and
+ * answered from a local cache without any request
+ */
 public class RestSchedulerClient {
 
+    private final String host;
     private final int port;
     private final HttpClient client = HttpClient.newHttpClient();
 
+    /** Statuses pushed by the server, only valid while {@link #subscribed} */
+    private final Map<Long, TaskStatus> taskStatuses = new ConcurrentHashMap<>();
+    private final Map<Long, TaskStatus> taskGroupStatuses = new ConcurrentHashMap<>();
+    /**
+     * Number of the last pushed setting event per id, so that the responses of own writes don't
+     * overwrite newer pushed statuses, guarded by {@link #statusUpdate}
+     */
+    private final Map<Long, Long> taskEvents = new HashMap<>();
+    private final Map<Long, Long> taskGroupEvents = new HashMap<>();
+    private long pushedEvents = 0;
+    private volatile boolean subscribed = false;
+    private CompletableFuture<?> subscription;
+    /** Notified on every status update */
+    private final Object statusUpdate = new Object();
+
     public RestSchedulerClient(int port) {
+        this("localhost", port);
+    }
+
+    public RestSchedulerClient(String host, int port) {
+        this.host = host;
         this.port = port;
         checkConnection();
     }
@@ -30,7 +66,9 @@ public class RestSchedulerClient {
 
     private URI url(String path, Map<String, Object> urlParameters) {
         StringBuilder sb = new StringBuilder();
-        sb.append("http://localhost:")
+        sb.append("http://")
+                .append(host)
+                .append(":")
                 .append(port)
                 .append("/")
                 .append(path);
@@ -48,14 +86,33 @@ public class RestSchedulerClient {
     }
 
     private String request(String path, Map<String, Object> urlParameters) {
+        return send(path, urlParameters).body();
+    }
+
+    private HttpResponse<String> send(String path, Map<String, Object> urlParameters) {
         var request = HttpRequest.newBuilder().uri(url(path, urlParameters)).GET().build();
         try {
-            return client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+            return client.send(request, HttpResponse.BodyHandlers.ofString());
         } catch (IOException | InterruptedException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Response of a batch request
+     * @param response {@code ok} on success
+     * @param appliedAt server time at which the settings or plans were applied, null if unknown
+     */
+    public record BatchResponse(String response, Instant appliedAt) {}
+
+    private BatchResponse batchRequest(String path, Map<String, Object> urlParameters) {
+        var response = send(path, urlParameters);
+        Instant appliedAt = response.headers().firstValue(SchedulerServer.APPLIED_AT_HEADER)
+                .map(SchedulerServer::parseEpochNanos)
+                .orElse(null);
+        return new BatchResponse(response.body(), appliedAt);
+    }
+
     /** Scheduling status of a thread or task */
     public enum TaskStatus {
         /** The task can be rescheduled */
@@ -74,29 +131,274 @@ public class RestSchedulerClient {
         }
     }
 
+    /**
+     * Subscribe to the status events of the server, blocks till the cache contains all current settings
+     * <p>
+     * Falls back to requests if the connection is lost
+     */
+    public synchronized void subscribe(Duration timeout) {
+        if (subscription != null && !subscription.isDone()) {
+            return;
+        }
+        CountDownLatch synced = new CountDownLatch(1);
+        var request = HttpRequest.newBuilder().uri(url("events", Map.of())).GET().build();
+        subscription = client.sendAsync(request, HttpResponse.BodyHandlers.ofLines())
+                .thenAccept(response -> processEvents(response.body(), synced))
+                .whenComplete((result, error) -> {
+                    subscribed = false;
+                    synced.countDown();
+                    synchronized (statusUpdate) {
+                        statusUpdate.notifyAll();
+                    }
+                });
+        try {
+            if (!synced.await(timeout.toNanos(), TimeUnit.NANOSECONDS) || !subscribed) {
+                subscription.cancel(true);
+                throw new IllegalStateException("Could not subscribe to the status events");
+            }
+        } catch (InterruptedException e) {
+            subscription.cancel(true);
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void subscribe() {
+        subscribe(Duration.ofSeconds(10));
+    }
+
+    public boolean isSubscribed() {
+        return subscribed;
+    }
+
+    /** Parse the server-sent events, each consisting of an event and a data line */
+    private void processEvents(Stream<String> lines, CountDownLatch synced) {
+        synchronized (statusUpdate) {
+            taskStatuses.clear();
+            taskGroupStatuses.clear();
+            taskEvents.clear();
+            taskGroupEvents.clear();
+        }
+        String[] event = {null};
+        lines.forEach(line -> {
+            if (line.startsWith("event:")) {
+                event[0] = line.substring("event:".length()).strip();
+            } else if (line.startsWith("data:") && event[0] != null) {
+                processEvent(event[0], line.substring("data:".length()).strip());
+            } else if (line.isEmpty() && "synced".equals(event[0])) {
+                subscribed = true;
+                synced.countDown();
+            }
+        });
+    }
+
+    /** Process an event with data like {@code task 42 stopping} */
+    private void processEvent(String event, String data) {
+        if (!event.equals("setting")) {
+            return;
+        }
+        String[] parts = data.split(" ");
+        if (parts.length != 3) {
+            return;
+        }
+        boolean group = parts[0].equals("taskGroup");
+        long id = Long.parseLong(parts[1]);
+        synchronized (statusUpdate) {
+            (group ? taskGroupEvents : taskEvents).put(id, ++pushedEvents);
+            (group ? taskGroupStatuses : taskStatuses).put(id, TaskStatus.fromString(parts[2]));
+            statusUpdate.notifyAll();
+        }
+    }
+
+    /**
+     * Wait till the task has the given status, without polling if subscribed
+     * @return whether the status has been reached in time
+     */
+    public boolean awaitStatus(long taskId, TaskStatus status, Duration timeout) {
+        return awaitStatus(taskId, false, status, timeout);
+    }
+
+    public boolean awaitGroupStatus(long groupId, TaskStatus status, Duration timeout) {
+        return awaitStatus(groupId, true, status, timeout);
+    }
+
+    private boolean awaitStatus(long id, boolean group, TaskStatus status, Duration timeout) {
+        if (!subscribed) {
+            subscribe(timeout);
+        }
+        long deadline = System.nanoTime() + timeout.toNanos();
+        synchronized (statusUpdate) {
+            while (true) {
+                if (!subscribed) {
+                    return (group ? getTaskGroupStatus(id) : getTaskStatus(id)) == status;
+                }
+                if ((group ? taskGroupStatuses : taskStatuses).getOrDefault(id, TaskStatus.UNKNOWN) == status) {
+                    return true;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(statusUpdate, remaining);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
     public TaskStatus getTaskStatus(long taskId) {
+        if (subscribed) {
+            return taskStatuses.getOrDefault(taskId, TaskStatus.UNKNOWN);
+        }
         var response = request("task/" + taskId, Map.of());
         return TaskStatus.fromString(response);
     }
 
+    /** Number of setting events pushed so far, obtain it before sending a write */
+    private long pushedEvents() {
+        synchronized (statusUpdate) {
+            return pushedEvents;
+        }
+    }
+
+    /**
+     * Update the cache directly, so that the own changes are visible before their events arrive
+     * <p>
+     * Skipped if an event for the id has been pushed since the write was sent, as this event
+     * is either the one of the write or a newer one
+     * @param eventsBefore {@link #pushedEvents()} before sending the write
+     */
+    private void updateCache(boolean group, long id, boolean stopping, long eventsBefore) {
+        updateCache(group, id, stopping ? TaskStatus.STOPPED : TaskStatus.RUNNING, eventsBefore);
+    }
+
+    private void updateCache(boolean group, long id, TaskStatus status, long eventsBefore) {
+        synchronized (statusUpdate) {
+            if (subscribed && (group ? taskGroupEvents : taskEvents).getOrDefault(id, 0L) <= eventsBefore) {
+                (group ? taskGroupStatuses : taskStatuses).put(id, status);
+            }
+        }
+    }
+
     public void stop(long taskId) {
+        long eventsBefore = pushedEvents();
         request("task/" + taskId, Map.of("stopping", true));
+        updateCache(false, taskId, true, eventsBefore);
     }
 
     public void resume(long taskId) {
+        long eventsBefore = pushedEvents();
         request("task/" + taskId, Map.of("stopping", false));
+        updateCache(false, taskId, false, eventsBefore);
+    }
+
+    /**
+     * Set the setting of multiple tasks with a single request
+     * @return the response of the server, {@code ok} on success
+     */
+    public String setTaskSettings(Collection<Long> taskIds, boolean stopping, int lotteryPriority) {
+        return setSettings(false, taskIds, stopping, lotteryPriority).response();
+    }
+
+    /** Set the setting of multiple task groups with a single request, see {@link #setTaskSettings} */
+    public String setTaskGroupSettings(Collection<Long> groupIds, boolean stopping, int lotteryPriority) {
+        return setSettings(true, groupIds, stopping, lotteryPriority).response();
+    }
+
+    /** Set the setting of multiple tasks or task groups with a single request, also returning the apply time */
+    public BatchResponse setSettings(boolean group, Collection<Long> ids, boolean stopping, int lotteryPriority) {
+        return batchSettings(group, ids, stopping, Map.of("lotteryPriority", lotteryPriority));
+    }
+
+    /**
+     * Stop or resume multiple tasks or task groups with a single request,
+     * keeping their lottery priorities and deadlines
+     */
+    public BatchResponse setStopping(boolean group, Collection<Long> ids, boolean stopping) {
+        return batchSettings(group, ids, stopping, Map.of());
+    }
+
+    private BatchResponse batchSettings(boolean group, Collection<Long> ids, boolean stopping, Map<String, Object> parameters) {
+        if (ids.isEmpty()) {
+            return new BatchResponse("ok", null);
+        }
+        Map<String, Object> urlParameters = new HashMap<>(parameters);
+        urlParameters.put("ids", ids.stream().map(String::valueOf).collect(Collectors.joining(",")));
+        urlParameters.put("stopping", stopping);
+        long eventsBefore = pushedEvents();
+        var response = batchRequest(group ? "taskGroups" : "tasks", urlParameters);
+        ids.forEach(id -> updateCache(group, id, stopping, eventsBefore));
+        return response;
+    }
+
+    /**
+     * Set the plan (e.g. {@code 10s,10r}) of multiple tasks or task groups with a single request,
+     * returns after the plans started
+     * @param startAt server time to start the plans at, or null to start them immediately
+     * @return the response of the server, {@code ok} on success, and the time the plans started
+     */
+    public BatchResponse setPlans(boolean group, Collection<Long> ids, String plan, Instant startAt) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("ids", ids.stream().map(String::valueOf).collect(Collectors.joining(",")));
+        parameters.put("plan", plan);
+        if (startAt != null) {
+            parameters.put("startAt", SchedulerServer.epochNanos(startAt));
+        }
+        return batchRequest(group ? "taskGroups" : "tasks", parameters);
+    }
+
+    public String setPlan(long taskId, String plan) {
+        return request("task/plan/" + taskId, Map.of("plan", plan));
+    }
+
+    public String setGroupPlan(long groupId, String plan) {
+        return request("taskGroup/plan/" + groupId, Map.of("plan", plan));
+    }
+
+    /** Current wall clock time of the server */
+    public Instant getServerTime() {
+        return SchedulerServer.parseEpochNanos(request("time", Map.of()));
+    }
+
+    public void stop(Collection<Long> taskIds) {
+        setStopping(false, taskIds, true);
+    }
+
+    public void resume(Collection<Long> taskIds) {
+        setStopping(false, taskIds, false);
     }
 
     public TaskStatus getTaskGroupStatus(long groupId) {
+        if (subscribed) {
+            return taskGroupStatuses.getOrDefault(groupId, TaskStatus.UNKNOWN);
+        }
         var response = request("taskGroup/" + groupId, Map.of());
         return TaskStatus.fromString(response);
     }
 
     public void stopGroup(long groupId) {
+        long eventsBefore = pushedEvents();
         request("taskGroup/" + groupId, Map.of("stopping", true));
+        updateCache(true, groupId, true, eventsBefore);
     }
 
     public void resumeGroup(long groupId) {
+        long eventsBefore = pushedEvents();
         request("taskGroup/" + groupId, Map.of("stopping", false));
+        updateCache(true, groupId, false, eventsBefore);
+    }
+
+    /** Remove the setting of the task, so that the rules of the scheduler apply again */
+    public void clearSetting(long taskId) {
+        long eventsBefore = pushedEvents();
+        request("task/clear/" + taskId, Map.of());
+        updateCache(false, taskId, TaskStatus.UNKNOWN, eventsBefore);
+    }
+
+    public void clearGroupSetting(long groupId) {
+        long eventsBefore = pushedEvents();
+        request("taskGroup/clear/" + groupId, Map.of());
+        updateCache(true, groupId, TaskStatus.UNKNOWN, eventsBefore);
     }
 }
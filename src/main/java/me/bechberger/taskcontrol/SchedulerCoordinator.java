@@ -0,0 +1,299 @@
+package me.bechberger.taskcontrol;
+
+import picocli.CommandLine;
+import picocli.CommandLine.ArgGroup;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Sends settings and plans to multiple {@link SchedulerServer}s in parallel,
+ * e.g. to stop all replicas of a distributed system at nearly the same time
+ * <p>
+ * Every server gets a single batched request per command
+ */
+public class SchedulerCoordinator implements AutoCloseable {
+
+    /** Time requests per server to estimate its clock offset, the one with the smallest round trip is used */
+    private static final int CLOCK_SAMPLES = 5;
+
+    /** Tasks or task groups on one server, parsed from {@code host:port:id,id,...} */
+    public record Target(String host, int port, List<Long> ids) {
+        public static Target parse(String target) {
+            String[] parts = target.split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Invalid target " + target + ", use e.g. localhost:8087:42,43");
+            }
+            try {
+                return new Target(parts[0], Integer.parseInt(parts[1]),
+                        Stream.of(parts[2].split(",")).filter(id -> !id.isEmpty()).map(Long::parseLong).toList());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid target " + target + ", use e.g. localhost:8087:42,43");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    /**
+     * Result of a command on a single server
+     * @param appliedAt time (of the coordinator clock) at which the server applied the command,
+     *                  reported by the server and corrected by its clock offset,
+     *                  or the middle of the request if the server didn't report it
+     * @param roundTrip duration of the request
+     */
+    public record HostResult(Target target, String response, Instant appliedAt, Duration roundTrip) {
+        public boolean ok() {
+            return response.equals("ok");
+        }
+    }
+
+    public record Result(List<HostResult> hosts) {
+        public boolean ok() {
+            return hosts.stream().allMatch(HostResult::ok);
+        }
+
+        private Instant earliest() {
+            return hosts.stream().map(HostResult::appliedAt).min(Comparator.naturalOrder()).orElseThrow();
+        }
+
+        /** Difference between the earliest and the latest estimated apply time */
+        public Duration skew() {
+            var latest = hosts.stream().map(HostResult::appliedAt).max(Comparator.naturalOrder()).orElseThrow();
+            return Duration.between(earliest(), latest);
+        }
+
+        /** Time between the earliest apply time and the apply time of the host */
+        public Duration offset(HostResult host) {
+            return Duration.between(earliest(), host.appliedAt());
+        }
+
+        @Override
+        public String toString() {
+            return hosts.stream()
+                    .map(host -> String.format("%s %s offset %s round trip %s", host.target(), host.response(),
+                            formatMillis(offset(host)), formatMillis(host.roundTrip())))
+                    .collect(Collectors.joining("\n")) + "\nskew " + formatMillis(skew());
+        }
+
+        private static String formatMillis(Duration duration) {
+            return String.format("%.3fms", duration.toNanos() / 1_000_000.0);
+        }
+    }
+
+    private final List<Target> targets;
+    private final boolean group;
+    private final Map<Target, RestSchedulerClient> clients = new HashMap<>();
+    /** Clock offset of every server, estimated once on creation */
+    private final Map<Target, Duration> offsets;
+    /** One started thread per server, so that the requests are not delayed by starting threads */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param group whether the ids of the targets are task groups (processes)
+     */
+    public SchedulerCoordinator(List<Target> targets, boolean group) {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("At least one target is required");
+        }
+        this.targets = List.copyOf(targets);
+        this.group = group;
+        for (Target target : targets) {
+            // also opens the connection, so that the commands don't include the connection setup
+            clients.put(target, new RestSchedulerClient(target.host(), target.port()));
+        }
+        executor = new ThreadPoolExecutor(targets.size(), targets.size(), 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "SchedulerCoordinator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.prestartAllCoreThreads();
+        offsets = clockOffsets();
+    }
+
+    /** Stop the tasks, keeping their lottery priorities and deadlines */
+    public Result stop() {
+        return fanOut((target, client) -> client.setStopping(group, target.ids(), true));
+    }
+
+    public Result resume() {
+        return fanOut((target, client) -> client.setStopping(group, target.ids(), false));
+    }
+
+    public Result setSettings(boolean stopping, int lotteryPriority) {
+        return fanOut((target, client) -> client.setSettings(group, target.ids(), stopping, lotteryPriority));
+    }
+
+    /** Set the plan (e.g. {@code 10s,10r}) on all servers, starting it immediately */
+    public Result setPlan(String plan) {
+        return setPlan(plan, null);
+    }
+
+    /**
+     * Set the plan on all servers so that it starts on all of them at the same time,
+     * the start time is converted to the clock of each server using its estimated clock offset
+     * <p>
+     * Returns after the plans started
+     * @param startIn time till the plans start, has to be larger than the time to reach all servers,
+     *                or null to start them immediately
+     */
+    public Result setPlan(String plan, Duration startIn) {
+        Instant startAt = startIn == null ? null : Instant.now().plus(startIn);
+        return fanOut((target, client) -> client.setPlans(group, target.ids(), plan,
+                startAt == null ? null : startAt.plus(offsets.get(target))));
+    }
+
+    /** Estimate the clock offset (server time - coordinator time) of every server */
+    public Map<Target, Duration> clockOffsets() {
+        Map<Target, Future<Duration>> futures = new HashMap<>();
+        for (Target target : targets) {
+            var client = clients.get(target);
+            futures.put(target, executor.submit(() -> {
+                Duration bestRoundTrip = null;
+                Duration bestOffset = Duration.ZERO;
+                for (int i = 0; i < CLOCK_SAMPLES; i++) {
+                    Instant sent = Instant.now();
+                    Instant serverTime = client.getServerTime();
+                    Duration roundTrip = Duration.between(sent, Instant.now());
+                    if (bestRoundTrip == null || roundTrip.compareTo(bestRoundTrip) < 0) {
+                        bestRoundTrip = roundTrip;
+                        bestOffset = clockOffset(sent, roundTrip, serverTime);
+                    }
+                }
+                return bestOffset;
+            }));
+        }
+        Map<Target, Duration> offsets = new HashMap<>();
+        futures.forEach((target, future) -> offsets.put(target, get(future)));
+        return offsets;
+    }
+
+    /** Offset of the server clock, assuming that the server read its time in the middle of the request */
+    static Duration clockOffset(Instant sent, Duration roundTrip, Instant serverTime) {
+        return Duration.between(sent.plus(roundTrip.dividedBy(2)), serverTime);
+    }
+
+    /**
+     * Time of the coordinator clock at which the server applied the command
+     * @param serverAppliedAt time reported by the server, or null to use the middle of the request
+     */
+    static Instant appliedAt(Instant sent, Duration roundTrip, Instant serverAppliedAt, Duration offset) {
+        return serverAppliedAt == null ? sent.plus(roundTrip.dividedBy(2)) : serverAppliedAt.minus(offset);
+    }
+
+    /** Run the command for all servers at once, released together by a latch */
+    private Result fanOut(BiFunction<Target, RestSchedulerClient, RestSchedulerClient.BatchResponse> command) {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<HostResult>> futures = new ArrayList<>();
+        for (Target target : targets) {
+            var client = clients.get(target);
+            futures.add(executor.submit(() -> {
+                start.await();
+                Instant sent = Instant.now();
+                long sentNanos = System.nanoTime();
+                String response;
+                Instant serverAppliedAt = null;
+                try {
+                    var batchResponse = command.apply(target, client);
+                    response = batchResponse.response().strip();
+                    serverAppliedAt = batchResponse.appliedAt();
+                } catch (RuntimeException e) {
+                    response = e.toString();
+                }
+                Duration roundTrip = Duration.ofNanos(System.nanoTime() - sentNanos);
+                return new HostResult(target, response,
+                        appliedAt(sent, roundTrip, serverAppliedAt, offsets.get(target)), roundTrip);
+            }));
+        }
+        start.countDown();
+        return new Result(futures.stream().map(SchedulerCoordinator::get).toList());
+    }
+
+    private static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    @Command(name = "coordinator", mixinStandardHelpOptions = true, version = "coordinator 1.0",
+            description = "Send settings and plans to multiple scheduler servers in parallel")
+    static class Cli implements Callable<Integer> {
+
+        static class Action {
+            @Option(names = "--stop", description = "Stop the tasks")
+            boolean stop;
+
+            @Option(names = "--resume", description = "Resume the tasks")
+            boolean resume;
+
+            @Option(names = "--plan", description = "Set the plan of the tasks, e.g. 10s,10r (10s stopped, 10s running)")
+            String plan;
+        }
+
+        @Parameters(arity = "1..*", paramLabel = "TARGET",
+                description = "Tasks on a scheduler server as host:port:id,id,..., e.g. localhost:8087:42,43")
+        private List<String> targets;
+
+        @ArgGroup(multiplicity = "1")
+        private Action action;
+
+        @Option(names = {"-g", "--group"}, description = "The ids are task groups (processes)")
+        private boolean group;
+
+        @Option(names = "--start-in", description = "Start the plans on all servers at the same time after this duration, e.g. 500ms")
+        private String startIn;
+
+        @Override
+        public Integer call() {
+            if (startIn != null && action.plan == null) {
+                System.err.println("--start-in requires --plan");
+                return 2;
+            }
+            try (var coordinator = new SchedulerCoordinator(targets.stream().map(Target::parse).toList(), group)) {
+                Result result;
+                if (action.plan != null) {
+                    result = coordinator.setPlan(action.plan,
+                            startIn == null ? null : SchedulerServer.parseDuration(startIn));
+                } else {
+                    result = action.stop ? coordinator.stop() : coordinator.resume();
+                }
+                System.out.println(result);
+                return result.ok() ? 0 : 1;
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int exitCode = new CommandLine(new Cli()).execute(args);
+        System.exit(exitCode);
+    }
+}
@@ -2,25 +2,44 @@ package me.bechberger.taskcontrol;
 
 import io.javalin.Javalin;
 import io.javalin.http.Context;
+import io.javalin.http.sse.SseClient;
 import me.bechberger.ebpf.bpf.BPFProgram;
 import me.bechberger.ebpf.bpf.map.BPFHashMap;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import me.bechberger.taskcontrol.scheduler.BaseScheduler;
+import me.bechberger.taskcontrol.scheduler.BatchingScheduler;
+import me.bechberger.taskcontrol.scheduler.ChaosScheduler;
+import me.bechberger.taskcontrol.scheduler.DeadlineScheduler;
+import me.bechberger.taskcontrol.scheduler.EDFScheduler;
 import me.bechberger.taskcontrol.scheduler.FIFOScheduler;
 import me.bechberger.taskcontrol.scheduler.LotteryScheduler;
+import me.bechberger.taskcontrol.scheduler.ReplayScheduler;
+import me.bechberger.taskcontrol.scheduler.StrideScheduler;
+import me.bechberger.taskcontrol.scheduler.TopologyAwareScheduler;
+import me.bechberger.taskcontrol.util.BinaryLog;
+import me.bechberger.taskcontrol.util.CpuTopology;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
@@ -33,15 +52,53 @@ public class SchedulerServer implements Callable<Integer> {
 
     public static final int DEFAULT_PORT = 8087;
 
+    /** Response header of the batch requests with the time the settings or plans were applied */
+    public static final String APPLIED_AT_HEADER = "Applied-At";
+
+    /** Maximum time the batch requests wait for the plans to start after their start time */
+    private static final Duration PLAN_START_TIMEOUT = Duration.ofSeconds(1);
+
     private static final String SERVER_HELP = """
             GET localhost:PORT/task/{id} to get the status of a task
-            GET localhost:PORT/task/{id}?stopping=true|false to stop or resume a task
-            GET localhost:PORT/task/{id}?lotteryPriority=N positive priority for the LotteryScheduler (larger the better)
+            GET localhost:PORT/task/{id}?stopping=true|false to stop or resume a task, keeping its lotteryPriority and deadline
+            GET localhost:PORT/task/{id}?lotteryPriority=N positive priority for the LotteryScheduler and weight for the StrideScheduler (larger the better)
+            GET localhost:PORT/task/{id}?stopping=false&deadline=10ms relative deadline for the EDFScheduler
+            GET localhost:PORT/task/clear/{id} to remove the setting of a task, so that the rules apply again
             GET localhost:PORT/task/plan/{id}?plan=s10,r10 to set the plan for a task (e.g. 10s running, 10s stopped)
+            GET localhost:PORT/task/plan/{id}?plan=s10,r10&startAt=NS to start the plan at the given time (nanoseconds since the epoch)
             GET localhost:PORT/task/plan/{id} to get the current plan for a task
             GET localhost:PORT/plans the current plans as JSON
+            GET localhost:PORT/events server-sent events for setting changes ("setting", e.g. "task 42 stopping")
+                and plan transitions ("plan"), starting with the current settings and a "synced" event
+            GET localhost:PORT/resumeLatency time between resuming stopped tasks and them running again
 
             The same for taskGroup (process)
+
+            GET localhost:PORT/tasks?ids=1,2,3&stopping=true|false&lotteryPriority=N to set the setting of multiple tasks,
+                only the stop flag is changed if neither lotteryPriority nor deadline is given
+            GET localhost:PORT/tasks?ids=1,2,3&plan=s10,r10&startAt=NS to set the plan of multiple tasks,
+                optionally starting at the given time (nanoseconds since the epoch), waits till the plans started
+                the Applied-At header of the response is the time the settings or plans were applied (nanoseconds since the epoch)
+            GET localhost:PORT/taskGroups?ids=1,2,3&... the same for multiple task groups
+            GET localhost:PORT/time the current time in nanoseconds since the epoch, to estimate clock offsets
+
+            GET localhost:PORT/rules the current rules as JSON, first matching rule wins
+            GET localhost:PORT/rules/add?comm=ForkJoinPool*&tgid=N&stopping=true|false&lotteryPriority=N
+                to apply a setting to all tasks with a matching comm (and optionally in task group N)
+            GET localhost:PORT/rules/remove/{index} to remove a rule
+            GET localhost:PORT/rules/clear to remove all rules
+
+            GET localhost:PORT/chaos the current chaos mode configuration, number of held back tasks and replayed decisions
+            GET localhost:PORT/chaos?probability=0.01&maxDelay=10ms&seed=N&tgid=N&cgroup=N
+                to randomly hold back tasks (of task group or cgroup N) when they are enqueued (fifo only)
+            GET localhost:PORT/chaos?enabled=false to disable the chaos mode
+
+            GET localhost:PORT/deadlines deadline hits, misses and max lateness (edf only)
+            GET localhost:PORT/deadlines?bestEffortMaxWait=20ms max time best effort tasks wait for deadline tasks (edf only)
+
+            GET localhost:PORT/dispatchBatchSize?size=N max tasks moved per dispatch call (fifo and stride only)
+
+            GET localhost:PORT/dispatchLog the status of recording (--record) and replaying (--replay) (lottery only)
             """;
 
     static class PlanInvalidException extends Exception {
@@ -81,53 +138,205 @@ public class SchedulerServer implements Callable<Integer> {
         }
     }
 
+    /**
+     * Pushes setting changes and plan transitions to all subscribed clients via server-sent events,
+     * every subscriber has its own sender thread with a queue, so that publishing never waits for slow subscribers
+     */
+    static class StatusBroadcaster {
+        private final Map<SseClient, ExecutorService> clients = new HashMap<>();
+        /** Current status by event key like {@code task 42} */
+        private final Map<String, String> statuses = new HashMap<>();
+
+        /** Send the current statuses and keep the client subscribed */
+        public void subscribe(SseClient client) {
+            client.keepAlive();
+            ExecutorService sender = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "StatusBroadcaster");
+                thread.setDaemon(true);
+                return thread;
+            });
+            client.onClose(() -> {
+                synchronized (this) {
+                    clients.remove(client);
+                }
+                sender.shutdownNow();
+            });
+            synchronized (this) {
+                statuses.forEach((key, status) -> sender.execute(() -> client.sendEvent("setting", key + " " + status)));
+                sender.execute(() -> client.sendEvent("synced", ""));
+                clients.put(client, sender);
+            }
+        }
+
+        private synchronized void publish(String event, String key, String status) {
+            if (event.equals("setting") && status.equals("unknown")) {
+                statuses.remove(key);
+            } else if (event.equals("setting")) {
+                statuses.put(key, status);
+            }
+            String data = key + " " + status;
+            clients.forEach((client, sender) -> sender.execute(() -> client.sendEvent(event, data)));
+        }
+
+        public void settingChanged(boolean group, int id, boolean stop) {
+            publish("setting", (group ? "taskGroup " : "task ") + id, stop ? "stopping" : "running");
+        }
+
+        public void settingCleared(boolean group, int id) {
+            publish("setting", (group ? "taskGroup " : "task ") + id, "unknown");
+        }
+
+        public void planChanged(boolean group, int id, String plan) {
+            publish("plan", (group ? "taskGroup " : "task ") + id, plan);
+        }
+    }
+
+    /** Updates the settings of tasks and task groups, kicks resumed ones and notifies the subscribers */
+    static class SettingsUpdater {
+        private final BaseScheduler scheduler;
+        private final StatusBroadcaster broadcaster;
+
+        public SettingsUpdater(BaseScheduler scheduler, StatusBroadcaster broadcaster) {
+            this.scheduler = scheduler;
+            this.broadcaster = broadcaster;
+        }
+
+        public BPFHashMap<Integer, BaseScheduler.TaskSetting> getMap(boolean group) {
+            return group ? scheduler.getTaskGroupSettingsMap() : scheduler.getTaskSettingsMap();
+        }
+
+        public synchronized void set(boolean group, int id, BaseScheduler.TaskSetting setting) {
+            var map = getMap(group);
+            var oldSetting = map.get(id);
+            map.put(id, setting);
+            if (!setting.stop() && oldSetting != null && oldSetting.stop()) {
+                scheduler.kickResumed(id, group);
+            }
+            broadcaster.settingChanged(group, id, setting.stop());
+        }
+
+        /** Only change the stop flag, keeping the lottery priority and deadline of an existing setting */
+        public synchronized void setStop(boolean group, int id, boolean stop) {
+            var oldSetting = getMap(group).get(id);
+            set(group, id, oldSetting == null ? new BaseScheduler.TaskSetting(stop, 1) : oldSetting.withStop(stop));
+        }
+
+        /** Remove the setting, so that the rules and defaults apply again, kicks the task if it was stopped */
+        public synchronized void clear(boolean group, int id) {
+            var map = getMap(group);
+            var oldSetting = map.get(id);
+            if (oldSetting == null) {
+                return;
+            }
+            map.delete(id);
+            if (oldSetting.stop()) {
+                scheduler.kickResumed(id, group);
+            }
+            broadcaster.settingCleared(group, id);
+        }
+
+        public StatusBroadcaster getBroadcaster() {
+            return broadcaster;
+        }
+    }
+
     static class SchedulePlanRunner extends Thread {
 
         private long startedAt = 0;
 
-        private final BPFHashMap<Integer, BaseScheduler.TaskSetting> settingsMap;
+        private final SettingsUpdater settings;
+
+        private final boolean group;
 
         private final int id;
 
         private final List<SchedulePlanItem> plan;
 
-        private final Runnable removeRunner;
+        /**
+         * Removes the runner from its manager when the plan ended, with whether the plan started,
+         * and resumes the task unless the runner has been replaced
+         */
+        private final Consumer<Boolean> removeRunner;
+
+        /** Wall clock time at which the plan starts, or null to start immediately */
+        private final Instant startAt;
+
+        /** Wall clock time at which the first setting of the plan was applied, null if not applied */
+        private volatile Instant appliedAt;
+
+        private final CountDownLatch applied = new CountDownLatch(1);
 
         private final AtomicBoolean running = new AtomicBoolean(true);
 
-        public SchedulePlanRunner(BPFHashMap<Integer, BaseScheduler.TaskSetting> settingsMap, int id,
-                                  List<SchedulePlanItem> plan, Runnable removeRunner) {
-            this.settingsMap = settingsMap;
+        public SchedulePlanRunner(SettingsUpdater settings, boolean group, int id,
+                                  List<SchedulePlanItem> plan, Instant startAt, Consumer<Boolean> removeRunner) {
+            this.settings = settings;
+            this.group = group;
             this.id = id;
             this.plan = plan;
+            this.startAt = startAt;
             this.removeRunner = removeRunner;
         }
 
+        private void setStopping(boolean stopping) {
+            settings.setStop(group, id, stopping);
+        }
+
         @Override
         public void run() {
+            try {
+                runPlan();
+            } finally {
+                removeRunner.accept(startedAt != 0);
+                applied.countDown();
+            }
+        }
+
+        private void runPlan() {
+            if (startAt != null) {
+                try {
+                    var delay = Duration.between(Instant.now(), startAt);
+                    if (delay.isPositive()) {
+                        Thread.sleep(delay);
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                if (!running.get()) {
+                    return;
+                }
+            }
             startedAt = System.currentTimeMillis();
             System.out.println("Starting plan " + id + ": " + currentPlan());
+            settings.getBroadcaster().planChanged(group, id, currentPlan());
             for (SchedulePlanItem item : plan) {
                 if (!running.get()) {
                     break;
                 }
                 // TODO: add parsing of other options
-                settingsMap.put(id, new BaseScheduler.TaskSetting(item.stopping(), 1));
+                setStopping(item.stopping());
+                if (appliedAt == null) {
+                    appliedAt = Instant.now();
+                    applied.countDown();
+                }
                 try {
                     Thread.sleep(item.duration);
                 } catch (InterruptedException e) {
-                    settingsMap.put(id, new BaseScheduler.TaskSetting(false, 1));
                     throw new RuntimeException(e);
                 }
             }
-            settingsMap.put(id, new BaseScheduler.TaskSetting(false, 1));
-            removeRunner.run();
         }
 
         public void stopRunning() {
             running.set(false);
         }
 
+        /** Wait till the first setting of the plan is applied, returns its wall clock time or null */
+        public Instant awaitApplied(Instant deadline) throws InterruptedException {
+            applied.await(Math.max(0, Duration.between(Instant.now(), deadline).toNanos()), TimeUnit.NANOSECONDS);
+            return appliedAt;
+        }
+
         public String currentPlan() {
             return plan.stream()
                     .map(Record::toString)
@@ -139,21 +348,35 @@ public class SchedulerServer implements Callable<Integer> {
     }
 
     static class SchedulePlanManager {
-        private final BPFHashMap<Integer, BaseScheduler.TaskSetting> settingsMap;
+        private final SettingsUpdater settings;
+        private final boolean group;
         private final Map<Integer, SchedulePlanRunner> runners;
 
-        public SchedulePlanManager(BPFHashMap<Integer, BaseScheduler.TaskSetting> settingsMap) {
-            this.settingsMap = settingsMap;
+        public SchedulePlanManager(SettingsUpdater settings, boolean group) {
+            this.settings = settings;
+            this.group = group;
             this.runners = new HashMap<>();
         }
 
-        public void setPlan(int id, String plan) throws PlanInvalidException {
+        public SchedulePlanRunner setPlan(int id, String plan) throws PlanInvalidException {
+            return setPlan(id, plan, null);
+        }
+
+        /** Set the plan, starting it at the given wall clock time or immediately if null */
+        public SchedulePlanRunner setPlan(int id, String plan, Instant startAt) throws PlanInvalidException {
             var items = SchedulePlanItem.parsePlan(plan);
-            var runner = new SchedulePlanRunner(settingsMap, id, items, () -> {
-                synchronized (this){
-                    runners.remove(id);
+            SchedulePlanRunner[] self = new SchedulePlanRunner[1];
+            var runner = new SchedulePlanRunner(settings, group, id, items, startAt, started -> {
+                synchronized (this) {
+                    // a replaced runner leaves the setting and the plan status to the runner that replaced it,
+                    // holding the lock keeps a new runner from being registered between the check and the resume
+                    if (runners.remove(id, self[0]) && started) {
+                        settings.setStop(group, id, false);
+                        settings.getBroadcaster().planChanged(group, id, "no plan");
+                    }
                 }
             });
+            self[0] = runner;
             SchedulePlanRunner oldRunner;
             synchronized (this) {
                 oldRunner = runners.put(id, runner);
@@ -162,6 +385,7 @@ public class SchedulerServer implements Callable<Integer> {
                 oldRunner.stopRunning();
             }
             runner.start();
+            return runner;
         }
 
         public void stopPlan(int id) {
@@ -190,18 +414,334 @@ public class SchedulerServer implements Callable<Integer> {
         }
     }
 
+    /** Keeps the rules of the scheduler compact at the indexes {@code 0..n-1} */
+    static class TaskRuleManager {
+        private final BaseScheduler scheduler;
+        private final List<BaseScheduler.TaskRule> rules = new ArrayList<>();
+
+        public TaskRuleManager(BaseScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        public synchronized void addRule(BaseScheduler.TaskRule rule) {
+            if (rules.size() >= BaseScheduler.MAX_RULES) {
+                throw new IllegalArgumentException("At most " + BaseScheduler.MAX_RULES + " rules are supported");
+            }
+            rules.add(rule);
+            sync(rules.size() - 1);
+        }
+
+        public synchronized void removeRule(int index) {
+            if (index < 0 || index >= rules.size()) {
+                throw new IllegalArgumentException("No rule with index " + index);
+            }
+            rules.remove(index);
+            sync(index);
+        }
+
+        public synchronized void clear() {
+            rules.clear();
+            sync(0);
+        }
+
+        /** Write all rules from {@code from} on into the map and invalidate the cached matches */
+        private void sync(int from) {
+            var map = scheduler.getTaskRulesMap();
+            for (int i = from; i < rules.size(); i++) {
+                map.put(i, rules.get(i));
+            }
+            for (int i = rules.size(); i < BaseScheduler.MAX_RULES; i++) {
+                map.delete(i);
+            }
+            var generation = scheduler.getRuleGeneration();
+            generation.set(generation.get() + 1);
+        }
+
+        record RuleDescription(int index, String comm, int tgid, boolean stop, int lotteryPriority, long deadline) {}
+
+        public synchronized List<RuleDescription> getRules() {
+            List<RuleDescription> result = new ArrayList<>();
+            for (int i = 0; i < rules.size(); i++) {
+                var rule = rules.get(i);
+                result.add(new RuleDescription(i, rule.pattern(), rule.tgid(), rule.setting().stop(),
+                        rule.setting().lotteryPriority(), rule.setting().deadline()));
+            }
+            return result;
+        }
+    }
+
+    /** Parse durations like {@code 10ms}, supported units are ns, us, ms and s */
+    static Duration parseDuration(String duration) {
+        var matcher = Pattern.compile("(\\d+\\.?\\d*)(ns|us|ms|s)").matcher(duration);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid duration " + duration + ", use e.g. 10ms");
+        }
+        double value = Double.parseDouble(matcher.group(1));
+        long factor = switch (matcher.group(2)) {
+            case "ns" -> 1;
+            case "us" -> 1_000;
+            case "ms" -> 1_000_000;
+            default -> 1_000_000_000;
+        };
+        return Duration.ofNanos(Math.round(value * factor));
+    }
+
+    static long epochNanos(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+
+    /** Inverse of {@link #epochNanos(Instant)}, throws a {@link NumberFormatException} if invalid */
+    static Instant parseEpochNanos(String nanos) {
+        return Instant.ofEpochSecond(0, Long.parseLong(nanos.strip()));
+    }
+
+    /**
+     * Wait till the plans applied their first setting
+     * @return the latest apply time, or null if a plan was replaced or stopped before it started
+     */
+    static Instant awaitApplied(List<SchedulePlanRunner> runners, Instant startAt) throws InterruptedException {
+        Instant now = Instant.now();
+        Instant deadline = (startAt != null && startAt.isAfter(now) ? startAt : now).plus(PLAN_START_TIMEOUT);
+        Instant latest = null;
+        for (SchedulePlanRunner runner : runners) {
+            Instant appliedAt = runner.awaitApplied(deadline);
+            if (appliedAt == null) {
+                return null;
+            }
+            if (latest == null || appliedAt.isAfter(latest)) {
+                latest = appliedAt;
+            }
+        }
+        return latest;
+    }
+
+    /** Parse the optional startAt parameter (nanoseconds since the epoch) */
+    static Instant parseStartAt(Context ctx) {
+        return Optional.ofNullable(ctx.queryParam("startAt"))
+                .map(SchedulerServer::parseEpochNanos)
+                .orElse(null);
+    }
+
+    /** Whether a setting request only changes the stop flag, as neither lotteryPriority nor deadline is given */
+    static boolean onlyStopping(Context ctx) {
+        return ctx.queryParam("lotteryPriority") == null && ctx.queryParam("deadline") == null;
+    }
+
+    /** Parse the optional {@code deadline} query parameter into nanoseconds, 0 if absent */
+    static long parseDeadline(Context ctx) {
+        return Optional.ofNullable(ctx.queryParam("deadline"))
+                .map(deadline -> parseDuration(deadline).toNanos())
+                .orElse(0L);
+    }
+
+    /**
+     * Configures the chaos mode, writes its decisions to the log and replays recorded decisions
+     * <p>
+     * Closed by a shutdown hook too, so that the logged decisions are not lost when the server is killed
+     */
+    static class ChaosManager {
+        /** Time to wait for the consumer to process the remaining decisions when closing */
+        private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(1);
+
+        private final ChaosScheduler scheduler;
+        private final Path logFile;
+        private final List<ChaosScheduler.ChaosDecision> replayDecisions;
+        private final AtomicLong decisions = new AtomicLong();
+        private final Thread consumer;
+        private volatile boolean closed = false;
+        private ChaosScheduler.ChaosConfig config;
+        private BinaryLog<ChaosScheduler.ChaosDecision> log;
+        /** Number of times the chaos mode has been enabled with a log file */
+        private int logCount = 0;
+        /** File of the current or last log, or null */
+        private Path currentLogFile;
+
+        /**
+         * @param logFile file to write the decisions of the first enabling to, the decisions of the n-th
+         *                enabling are written to {@code <logFile>.n}, so that no log is overwritten, or null
+         * @param replayFile file with recorded decisions to replay every time the chaos mode is enabled, or null
+         */
+        ChaosManager(ChaosScheduler scheduler, Path logFile, Path replayFile) {
+            this.scheduler = scheduler;
+            this.logFile = logFile;
+            this.replayDecisions = replayFile == null ? null :
+                    BinaryLog.read(replayFile, BinaryLog.CHAOS_DECISIONS).records();
+            scheduler.getChaosDecisions().setCallback((buffer, decision) -> {
+                if (decision.delay() > 0) {
+                    decisions.incrementAndGet();
+                }
+                synchronized (this) {
+                    if (log != null) {
+                        log.write(decision);
+                    }
+                }
+            });
+            consumer = new Thread(this::consumeLoop, "ChaosDecisionConsumer");
+            consumer.setDaemon(true);
+            consumer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+        }
+
+        /** Consume the decisions till closed, consuming the remaining decisions once more at the end */
+        private void consumeLoop() {
+            while (!closed) {
+                scheduler.getChaosDecisions().consumeAndThrow();
+            }
+            scheduler.getChaosDecisions().consumeAndThrow();
+        }
+
+        synchronized void enable(ChaosScheduler.ChaosConfig config) {
+            disable();
+            if (logFile != null) {
+                logCount++;
+                currentLogFile = logCount == 1 ? logFile : logFile.resolveSibling(logFile.getFileName() + "." + logCount);
+                log = new BinaryLog<>(currentLogFile, BinaryLog.CHAOS_DECISIONS, config.seed());
+                System.out.println("Recording the chaos decisions to " + currentLogFile);
+            }
+            if (replayDecisions != null) {
+                scheduler.startChaosReplay(replayDecisions);
+            }
+            decisions.set(0);
+            this.config = config;
+            scheduler.enableChaos(config);
+        }
+
+        synchronized void disable() {
+            scheduler.disableChaos();
+            config = null;
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+        }
+
+        /** Disable the chaos mode, drain the decisions and flush the log, can be called multiple times */
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                scheduler.disableChaos();
+                closed = true;
+            }
+            // the consumer calls the callback, which synchronizes on this
+            try {
+                consumer.join(DRAIN_TIMEOUT.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            disable();
+        }
+
+        /**
+         * @param decisions number of held back tasks
+         * @param replayed number of replayed decisions
+         * @param logFile file the decisions are or were last recorded in, or null
+         */
+        record ChaosStatus(boolean enabled, ChaosScheduler.ChaosConfig config, long decisions, int replayed,
+                           String logFile) {}
+
+        synchronized ChaosStatus getStatus() {
+            return new ChaosStatus(config != null, config, decisions.get(), scheduler.getChaosReplayed().get(),
+                    currentLogFile == null ? null : currentLogFile.toString());
+        }
+    }
+
+    /**
+     * Records the dispatch decisions to a file and replays them from a file
+     * <p>
+     * Closed by a shutdown hook too, so that the recorded decisions are not lost when the server is killed
+     */
+    static class DispatchLogManager {
+        /** Time to wait for the consumer to process the remaining records when closing */
+        private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(1);
+
+        private final ReplayScheduler scheduler;
+        private final BinaryLog<ReplayScheduler.DispatchRecord> log;
+        private final int replayLength;
+        private final Thread consumer;
+        private volatile boolean closed = false;
+
+        DispatchLogManager(ReplayScheduler scheduler, Path recordFile, Path replayFile) {
+            this.scheduler = scheduler;
+            if (replayFile != null) {
+                var records = BinaryLog.read(replayFile, BinaryLog.DISPATCH_RECORDS).records();
+                replayLength = records.size();
+                scheduler.startReplay(records);
+            } else {
+                replayLength = 0;
+            }
+            if (recordFile != null) {
+                log = new BinaryLog<>(recordFile, BinaryLog.DISPATCH_RECORDS);
+                scheduler.getDispatchRecords().setCallback((buffer, record) -> log.write(record));
+                scheduler.startRecording();
+            } else {
+                log = null;
+            }
+            consumer = new Thread(this::consumeLoop, "DispatchLogConsumer");
+            consumer.setDaemon(true);
+            consumer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+        }
+
+        /** Consume the records till closed, consuming the remaining records once more at the end */
+        private void consumeLoop() {
+            while (!closed) {
+                scheduler.getDispatchRecords().consumeAndThrow();
+            }
+            scheduler.getDispatchRecords().consumeAndThrow();
+        }
+
+        /** Stop recording and replaying, drain the records and flush the log, can be called multiple times */
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            scheduler.stopDispatchLog();
+            closed = true;
+            try {
+                consumer.join(DRAIN_TIMEOUT.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (log != null) {
+                log.close();
+            }
+        }
+
+        /** @param divergences replayed records whose task wasn't runnable or whose number of candidates differed */
+        record DispatchLogStatus(boolean recording, long recorded, boolean replaying, int replayed, int replayLength,
+                                 int divergences) {}
+
+        DispatchLogStatus getStatus() {
+            int mode = scheduler.getDispatchLogMode().get();
+            return new DispatchLogStatus((mode & ReplayScheduler.DISPATCH_LOG_RECORD) != 0,
+                    log == null ? 0 : log.getWritten(),
+                    (mode & ReplayScheduler.DISPATCH_LOG_REPLAY) != 0,
+                    scheduler.getReplayed().get(), replayLength, scheduler.getReplayDivergences().get());
+        }
+    }
+
+    private DispatchLogManager dispatchLogManager;
+
     public void launchServer(BaseScheduler scheduler, int port) {
         Javalin app = Javalin.create().start(port);
 
-        SchedulePlanManager taskPlanManager = new SchedulePlanManager(scheduler.getTaskSettingsMap());
-        SchedulePlanManager taskGroupPlanManager = new SchedulePlanManager(scheduler.getTaskGroupSettingsMap());
+        StatusBroadcaster broadcaster = new StatusBroadcaster();
+        SettingsUpdater settings = new SettingsUpdater(scheduler, broadcaster);
+
+        SchedulePlanManager taskPlanManager = new SchedulePlanManager(settings, false);
+        SchedulePlanManager taskGroupPlanManager = new SchedulePlanManager(settings, true);
+
+        app.sse("/events", broadcaster::subscribe);
 
         app.get("/help", ctx -> {
             String response = SERVER_HELP.replace("PORT", port + "");
             ctx.result(response);
         });
 
-        BiConsumer<BPFHashMap<Integer, BaseScheduler.TaskSetting>, Context> handleSettings = (map, ctx) -> {
+        BiConsumer<Boolean, Context> handleSettings = (group, ctx) -> {
+            var map = settings.getMap(group);
             String idParam = ctx.pathParam("id");
             int id;
             try {
@@ -222,16 +762,103 @@ public class SchedulerServer implements Callable<Integer> {
                 response = Optional.ofNullable(map.get(id))
                         .map(setting -> setting.stop() ? "stopping" : "running")
                         .orElse("not found");
+            } else if (onlyStopping(ctx)) {
+                settings.setStop(group, id, Boolean.parseBoolean(stopping));
+                response = "ok";
             } else {
-                map.put(id, new BaseScheduler.TaskSetting(Boolean.parseBoolean(stopping), Integer.parseInt(lotteryPriority)));
+                BaseScheduler.TaskSetting setting;
+                try {
+                    setting = new BaseScheduler.TaskSetting(Boolean.parseBoolean(stopping),
+                            Integer.parseInt(lotteryPriority), parseDeadline(ctx));
+                } catch (IllegalArgumentException e) {
+                    ctx.status(400).result("Bad Request, " + e.getMessage());
+                    return;
+                }
+                settings.set(group, id, setting);
                 response = "ok";
             }
 
             ctx.result(response);
         };
 
-        app.get("/task/{id}", ctx -> handleSettings.accept(scheduler.getTaskSettingsMap(), ctx));
-        app.get("/taskGroup/{id}", ctx -> handleSettings.accept(scheduler.getTaskGroupSettingsMap(), ctx));
+        app.get("/task/{id}", ctx -> handleSettings.accept(false, ctx));
+        app.get("/taskGroup/{id}", ctx -> handleSettings.accept(true, ctx));
+
+        BiConsumer<Boolean, Context> handleClear = (group, ctx) -> {
+            try {
+                settings.clear(group, Integer.parseInt(ctx.pathParam("id")));
+                ctx.result("ok");
+            } catch (NumberFormatException e) {
+                ctx.status(400).result("Bad Request");
+            }
+        };
+
+        app.get("/task/clear/{id}", ctx -> handleClear.accept(false, ctx));
+        app.get("/taskGroup/clear/{id}", ctx -> handleClear.accept(true, ctx));
+
+        BiConsumer<Boolean, Context> handleBatch = (group, ctx) -> {
+            String ids = ctx.queryParam("ids");
+            String stopping = ctx.queryParam("stopping");
+            String plan = ctx.queryParam("plan");
+            if (ids == null || (stopping == null) == (plan == null)) {
+                ctx.status(400).result("Bad Request, ids and either stopping or plan are required");
+                return;
+            }
+            BaseScheduler.TaskSetting setting = null;
+            Instant startAt;
+            List<Integer> taskIds;
+            try {
+                if (stopping != null) {
+                    setting = new BaseScheduler.TaskSetting(Boolean.parseBoolean(stopping),
+                            Integer.parseInt(Optional.ofNullable(ctx.queryParam("lotteryPriority")).orElse("1")),
+                            parseDeadline(ctx));
+                } else {
+                    SchedulePlanItem.parsePlan(plan);
+                }
+                startAt = parseStartAt(ctx);
+                taskIds = Stream.of(ids.split(",")).filter(id -> !id.isEmpty()).map(Integer::parseInt).toList();
+            } catch (IllegalArgumentException | PlanInvalidException e) {
+                ctx.status(400).result("Bad Request");
+                return;
+            }
+            var manager = group ? taskGroupPlanManager : taskPlanManager;
+            List<SchedulePlanRunner> runners = new ArrayList<>();
+            boolean onlyStopping = onlyStopping(ctx);
+            for (int id : taskIds) {
+                if (setting != null && onlyStopping) {
+                    settings.setStop(group, id, setting.stop());
+                } else if (setting != null) {
+                    settings.set(group, id, setting);
+                } else {
+                    try {
+                        runners.add(manager.setPlan(id, plan, startAt));
+                    } catch (PlanInvalidException e) {
+                        ctx.status(400).result("Bad Request, " + e.getMessage());
+                        return;
+                    }
+                }
+            }
+            Instant appliedAt = Instant.now();
+            if (!runners.isEmpty()) {
+                try {
+                    appliedAt = awaitApplied(runners, startAt);
+                } catch (InterruptedException e) {
+                    ctx.status(503).result("Service Unavailable");
+                    return;
+                }
+            }
+            if (appliedAt != null) {
+                ctx.header(APPLIED_AT_HEADER, String.valueOf(epochNanos(appliedAt)));
+            }
+            ctx.result("ok");
+        };
+
+        app.get("/tasks", ctx -> handleBatch.accept(false, ctx));
+        app.get("/taskGroups", ctx -> handleBatch.accept(true, ctx));
+
+        app.get("/time", ctx -> {
+            ctx.result(String.valueOf(epochNanos(Instant.now())));
+        });
 
         BiConsumer<SchedulePlanManager, Context> handlePlan = (manager, ctx) -> {
             String idParam = ctx.pathParam("id");
@@ -263,9 +890,9 @@ public class SchedulerServer implements Callable<Integer> {
                 ctx.result(response);
             } else {
                 try {
-                    manager.setPlan(id, plan);
+                    manager.setPlan(id, plan, parseStartAt(ctx));
                     ctx.result("ok");
-                } catch (PlanInvalidException e) {
+                } catch (PlanInvalidException | IllegalArgumentException e) {
                     ctx.status(400).result(e.getMessage());
                 }
             }
@@ -275,6 +902,8 @@ public class SchedulerServer implements Callable<Integer> {
 
         app.get("/taskGroup/plan/{id}", ctx -> handlePlan.accept(taskGroupPlanManager, ctx));
 
+        app.get("/resumeLatency", ctx -> ctx.json(scheduler.getResumeLatencyStats()));
+
         app.get("/plans", ctx -> {
             // print all active plans
             var taskPlans = taskPlanManager.getCurrentPlans();
@@ -282,6 +911,115 @@ public class SchedulerServer implements Callable<Integer> {
             ctx.json(Map.of("task", taskPlans, "taskGroup", taskGroupPlans));
         });
 
+        TaskRuleManager ruleManager = new TaskRuleManager(scheduler);
+
+        app.get("/rules", ctx -> ctx.json(ruleManager.getRules()));
+
+        app.get("/rules/add", ctx -> {
+            String comm = ctx.queryParam("comm");
+            if (comm == null) {
+                ctx.status(400).result("Bad Request, comm is required");
+                return;
+            }
+            try {
+                int tgid = Integer.parseInt(Optional.ofNullable(ctx.queryParam("tgid")).orElse("0"));
+                boolean stopping = Boolean.parseBoolean(ctx.queryParam("stopping"));
+                int lotteryPriority = Integer.parseInt(Optional.ofNullable(ctx.queryParam("lotteryPriority")).orElse("1"));
+                ruleManager.addRule(BaseScheduler.TaskRule.parse(comm, tgid,
+                        new BaseScheduler.TaskSetting(stopping, lotteryPriority, parseDeadline(ctx))));
+                ctx.result("ok");
+            } catch (IllegalArgumentException e) {
+                ctx.status(400).result(e.getMessage());
+            }
+        });
+
+        app.get("/rules/remove/{index}", ctx -> {
+            try {
+                ruleManager.removeRule(Integer.parseInt(ctx.pathParam("index")));
+                ctx.result("ok");
+            } catch (IllegalArgumentException e) {
+                ctx.status(400).result(e.getMessage());
+            }
+        });
+
+        app.get("/rules/clear", ctx -> {
+            ruleManager.clear();
+            ctx.result("ok");
+        });
+
+        if (scheduler instanceof ChaosScheduler chaosScheduler) {
+            ChaosManager chaosManager = new ChaosManager(chaosScheduler, chaosLog, chaosReplay);
+
+            app.get("/chaos", ctx -> {
+                String enabled = ctx.queryParam("enabled");
+                String probability = ctx.queryParam("probability");
+                if (enabled != null && !Boolean.parseBoolean(enabled)) {
+                    chaosManager.disable();
+                    ctx.result("ok");
+                    return;
+                }
+                if (probability == null) {
+                    ctx.json(chaosManager.getStatus());
+                    return;
+                }
+                try {
+                    chaosManager.enable(new ChaosScheduler.ChaosConfig(
+                            Integer.parseInt(Optional.ofNullable(ctx.queryParam("tgid")).orElse("0")),
+                            Long.parseLong(Optional.ofNullable(ctx.queryParam("cgroup")).orElse("0")),
+                            Double.parseDouble(probability),
+                            parseDuration(Optional.ofNullable(ctx.queryParam("maxDelay")).orElse("10ms")),
+                            Long.parseLong(Optional.ofNullable(ctx.queryParam("seed")).orElse("0"))));
+                    ctx.result("ok");
+                } catch (IllegalArgumentException e) {
+                    ctx.status(400).result(e.getMessage());
+                }
+            });
+        } else {
+            app.get("/chaos", ctx -> ctx.status(400).result("Chaos mode is not supported by this scheduler"));
+        }
+
+        if (scheduler instanceof DeadlineScheduler deadlineScheduler) {
+            app.get("/deadlines", ctx -> {
+                String bestEffortMaxWait = ctx.queryParam("bestEffortMaxWait");
+                if (bestEffortMaxWait != null) {
+                    try {
+                        deadlineScheduler.setBestEffortMaxWait(parseDuration(bestEffortMaxWait));
+                    } catch (IllegalArgumentException e) {
+                        ctx.status(400).result(e.getMessage());
+                        return;
+                    }
+                }
+                ctx.json(deadlineScheduler.getDeadlineStats());
+            });
+        } else {
+            app.get("/deadlines", ctx -> ctx.status(400).result("Deadlines are not supported by this scheduler"));
+        }
+
+        app.get("/dispatchBatchSize", ctx -> {
+            if (!(scheduler instanceof BatchingScheduler batchingScheduler)) {
+                ctx.status(400).result("Dispatch batching is not supported by this scheduler");
+                return;
+            }
+            String size = ctx.queryParam("size");
+            if (size != null) {
+                try {
+                    batchingScheduler.setDispatchBatchSize(Integer.parseInt(size));
+                } catch (IllegalArgumentException e) {
+                    ctx.status(400).result("Bad Request, size has to be a positive number");
+                    return;
+                }
+            }
+            ctx.result(batchingScheduler.getDispatchBatchSize().get() + "");
+        });
+
+        app.get("/dispatchLog", ctx -> {
+            if (dispatchLogManager == null) {
+                ctx.status(400).result("Neither recording nor replaying, use --record or --replay");
+                return;
+            }
+            ctx.json(dispatchLogManager.getStatus());
+        });
+
         System.out.println("Starting server on port " + port);
         System.out.println(SERVER_HELP.replace("PORT", port + ""));
     }
@@ -291,7 +1029,9 @@ public class SchedulerServer implements Callable<Integer> {
 
     enum SchedulerType {
         fifo(FIFOScheduler.class),
-        lottery(LotteryScheduler.class);
+        lottery(LotteryScheduler.class),
+        stride(StrideScheduler.class),
+        edf(EDFScheduler.class);
         private final Class<BaseScheduler> schedulerClass;
         private final Consumer<BaseScheduler> init;
         @SuppressWarnings("unchecked")
@@ -311,18 +1051,59 @@ public class SchedulerServer implements Callable<Integer> {
         }
     }
 
+    @Option(names = "--chaos-log", description = "File to record the decisions of the chaos mode in, <file>.n for the n-th enabling")
+    private Path chaosLog;
+
+    @Option(names = "--chaos-replay", description = "File with recorded chaos mode decisions to replay when the chaos mode is enabled")
+    private Path chaosReplay;
+
+    @Option(names = "--record", description = "File to record the dispatch decisions in (lottery only)")
+    private Path recordFile;
+
+    @Option(names = "--replay", description = "File with recorded dispatch decisions to replay (lottery only)")
+    private Path replayFile;
+
+    @Option(names = "--dispatch-batch-size", description = "Max tasks moved per dispatch call (fifo and stride only), default "
+            + BatchingScheduler.DEFAULT_DISPATCH_BATCH_SIZE)
+    private Integer dispatchBatchSize;
+
+    @Option(names = "--ignore-topology", description = "Don't prefer dispatching tasks to CPUs sharing a cache or node with their last CPU")
+    private boolean ignoreTopology;
+
     @Option(names = {"-s", "--scheduler"}, description = "The scheduler to use, available schedulers: ${COMPLETION-CANDIDATES}", defaultValue = "fifo")
     private SchedulerType schedulerType;
 
     @Override
     public Integer call() throws Exception {
         try (var program = schedulerType.load()) {
+            if (!ignoreTopology && program instanceof TopologyAwareScheduler topologyAwareScheduler) {
+                var topology = CpuTopology.read();
+                System.out.println("Using " + topology);
+                topologyAwareScheduler.setTopology(topology);
+            }
+            if (dispatchBatchSize != null) {
+                if (!(program instanceof BatchingScheduler batchingScheduler)) {
+                    System.err.println("Dispatch batching is not supported by the " + schedulerType + " scheduler");
+                    return 1;
+                }
+                batchingScheduler.setDispatchBatchSize(dispatchBatchSize);
+            }
+            if (recordFile != null || replayFile != null) {
+                if (!(program instanceof ReplayScheduler replayScheduler)) {
+                    System.err.println("Recording and replaying are not supported by the " + schedulerType + " scheduler");
+                    return 1;
+                }
+                dispatchLogManager = new DispatchLogManager(replayScheduler, recordFile, replayFile);
+            }
             program.attachScheduler();
             new Thread(program::tracePrintLoop).start();
             launchServer(program, port);
             while (program.isSchedulerAttachedProperly()) {
                 Thread.sleep(1000);
             }
+            if (dispatchLogManager != null) {
+                dispatchLogManager.close();
+            }
         }
         return 0;
     }
@@ -0,0 +1,161 @@
+package me.bechberger.taskcontrol;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingStream;
+import me.bechberger.taskcontrol.util.ThreadIdTable;
+import me.bechberger.taskcontrol.util.ThreadStartHook;
+import me.bechberger.taskcontrol.util.ThreadStartTransformer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Java agent that records the OS thread id of every thread at its start,
+ * so that {@link ThreadControl} doesn't have to look them up via jstack
+ * <p>
+ * Use it via {@code -javaagent:taskcontrol.jar[=capacity]}. It instruments {@code Thread.run}
+ * (see {@link ThreadStartTransformer}), so that every platform thread registers its id synchronously
+ * before it runs any code. As a fallback for threads whose {@code run} isn't instrumented,
+ * it streams the JFR {@code jdk.ThreadStart} events, and it removes the ids of terminated threads
+ * on {@code jdk.ThreadEnd} events.
+ * <p>
+ * Limitation: JFR delivers the events only about once per second, so threads that are registered
+ * only via JFR and are younger than that are usually not known yet and {@link ThreadControl} falls
+ * back to a thread dump for them, except for the current thread, which registers itself via
+ * {@link #registerCurrentThread()}. If the table is full, new threads are not registered and a warning
+ * is printed once.
+ */
+public class ThreadAgent {
+
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /** Classes that {@code java.lang.Thread} calls, they are loaded by the bootstrap class loader */
+    private static final List<String> BOOTSTRAP_CLASSES = List.of(
+            "me.bechberger.taskcontrol.util.ThreadStartHook", "me.bechberger.taskcontrol.util.ThreadIdTable");
+
+    private static volatile ThreadIdTable table;
+
+    public static void premain(String agentArgs, Instrumentation inst) {
+        // before the first use of the bootstrap classes, so that they aren't loaded by the application class loader
+        boolean hookAvailable = appendToBootstrapClassLoader(inst);
+        start(agentArgs == null || agentArgs.isBlank() ? DEFAULT_CAPACITY : Integer.parseInt(agentArgs.strip()));
+        if (hookAvailable) {
+            instrumentThreads(inst);
+        }
+    }
+
+    public static void agentmain(String agentArgs, Instrumentation inst) {
+        premain(agentArgs, inst);
+    }
+
+    /** Start recording the thread ids, does nothing if already started */
+    public static synchronized void start(int capacity) {
+        if (table != null) {
+            return;
+        }
+        var newTable = new ThreadIdTable(capacity);
+        var stream = new RecordingStream();
+        stream.enable("jdk.ThreadStart").withoutStackTrace();
+        stream.enable("jdk.ThreadEnd").withoutStackTrace();
+        stream.onEvent("jdk.ThreadStart", event -> {
+            var thread = getThread(event);
+            if (thread != null && thread.getOSThreadId() > 0) {
+                ThreadStartHook.put(newTable, thread.getJavaThreadId(), thread.getOSThreadId());
+            }
+        });
+        stream.onEvent("jdk.ThreadEnd", event -> {
+            var thread = getThread(event);
+            if (thread != null) {
+                newTable.remove(thread.getJavaThreadId());
+            }
+        });
+        stream.startAsync();
+        table = newTable;
+        ThreadStartHook.setTable(newTable);
+    }
+
+    /**
+     * Put the classes called by the instrumented threads into a jar on the bootstrap class path,
+     * not the whole agent jar, as the application has to load its dependencies itself
+     * @return false if the classes are not available, the threads are then only registered via JFR
+     */
+    private static boolean appendToBootstrapClassLoader(Instrumentation inst) {
+        try {
+            Path jar = Files.createTempFile("taskcontrol-thread-hook", ".jar");
+            jar.toFile().deleteOnExit();
+            try (var out = new JarOutputStream(Files.newOutputStream(jar))) {
+                for (String className : BOOTSTRAP_CLASSES) {
+                    String entry = className.replace('.', '/') + ".class";
+                    try (InputStream in = ThreadAgent.class.getClassLoader().getResourceAsStream(entry)) {
+                        if (in == null) {
+                            throw new IOException("Class file " + entry + " not found");
+                        }
+                        out.putNextEntry(new JarEntry(entry));
+                        in.transferTo(out);
+                        out.closeEntry();
+                    }
+                }
+            }
+            inst.appendToBootstrapClassLoaderSearch(new JarFile(jar.toFile()));
+            return true;
+        } catch (IOException e) {
+            System.err.println("ThreadAgent: can't instrument threads, registering them via JFR only: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** Instrument the run methods of all current and future thread classes */
+    private static void instrumentThreads(Instrumentation inst) {
+        inst.addTransformer(new ThreadStartTransformer(), true);
+        Class<?>[] threadClasses = Arrays.stream(inst.getAllLoadedClasses())
+                .filter(clazz -> Thread.class.isAssignableFrom(clazz) && inst.isModifiableClass(clazz))
+                .toArray(Class<?>[]::new);
+        try {
+            inst.retransformClasses(threadClasses);
+        } catch (Exception e) {
+            System.err.println("ThreadAgent: can't instrument the loaded thread classes, registering their threads "
+                    + "via JFR only: " + e.getMessage());
+        }
+    }
+
+    private static RecordedThread getThread(RecordedEvent event) {
+        return event.hasField("thread") ? event.getThread("thread") : event.getThread();
+    }
+
+    public static boolean isStarted() {
+        return table != null;
+    }
+
+    /** @return OS thread id or -1 if not (yet) known */
+    public static long osId(Thread thread) {
+        var currentTable = table;
+        if (currentTable == null) {
+            return -1;
+        }
+        return currentTable.get(thread.threadId());
+    }
+
+    /** Register the OS thread id of the current thread, obtained via {@code /proc/thread-self} */
+    public static long registerCurrentThread() {
+        long osId = currentOsId();
+        var currentTable = table;
+        if (osId > 0 && currentTable != null) {
+            ThreadStartHook.put(currentTable, Thread.currentThread().threadId(), osId);
+        }
+        return osId;
+    }
+
+    /** @return OS thread id of the current thread or -1 if {@code /proc} is not available */
+    static long currentOsId() {
+        return ThreadStartHook.currentOsId();
+    }
+}
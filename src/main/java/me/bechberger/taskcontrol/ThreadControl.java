@@ -1,32 +1,143 @@
 package me.bechberger.taskcontrol;
 
 import me.bechberger.taskcontrol.util.ExtendedThreadInfo;
+import me.bechberger.taskcontrol.util.PoolThreads;
 import me.bechberger.taskcontrol.util.ProcessThreads;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
 import static me.bechberger.taskcontrol.SchedulerServer.DEFAULT_PORT;
 
 /** Control the scheduling of Java threads */
 public class ThreadControl {
 
-    private final ProcessThreads processThreads = new ProcessThreads();
+    /** Interval in which the workers of controlled pools are checked for new threads */
+    private static final Duration POOL_TRACKING_INTERVAL = Duration.ofMillis(100);
+
+    /** Created on first use, as it requires a thread dump */
+    private ProcessThreads processThreads;
     private final RestSchedulerClient schedulerClient;
 
+    /**
+     * Setting of a controlled pool
+     * @param appliedTo OS thread ids of the workers that the setting has already been applied to
+     */
+    private record PoolSetting(boolean stop, int lotteryPriority, Set<Long> appliedTo) {
+
+        /** The setting of pools that aren't controlled */
+        static final PoolSetting DEFAULT = new PoolSetting(false, 1, Set.of());
+
+        boolean isDefault() {
+            return !stop && lotteryPriority == 1;
+        }
+    }
+
+    private final Map<ExecutorService, PoolSetting> pools = new IdentityHashMap<>();
+    /**
+     * Held while updating pool settings and sending them, so that the tracker can't send an outdated
+     * setting after a newer one, whereas the {@code pools} monitor is never held during requests
+     */
+    private final Object poolSettingsLock = new Object();
+    private Thread poolTracker;
+
     /** Start the scheduler with the default port from {@code ./scheduler.sh} */
     public ThreadControl() {
         this(DEFAULT_PORT);
     }
 
     public ThreadControl(int port) {
+        this(port, false);
+    }
+
+    /**
+     * @param subscribe subscribe to the status events of the scheduler, so that
+     *                  {@link #getThreadStatus(Thread)} doesn't require any request
+     */
+    public ThreadControl(int port, boolean subscribe) {
         this.schedulerClient = new RestSchedulerClient(port);
+        if (subscribe) {
+            this.schedulerClient.subscribe();
+        }
     }
 
-    /** Map the Java thread to the OS thread ID */
+    /** OS thread id without a thread dump, or -1 */
+    private long knownOsId(Thread thread) {
+        long registered = ThreadAgent.osId(thread);
+        if (registered > 0) {
+            return registered;
+        }
+        if (thread == Thread.currentThread()) {
+            return ThreadAgent.registerCurrentThread();
+        }
+        return -1;
+    }
+
+    private ProcessThreads processThreads() {
+        if (processThreads == null) {
+            processThreads = new ProcessThreads();
+        }
+        return processThreads;
+    }
+
+    /**
+     * Map the Java thread to the OS thread ID
+     * <p>
+     * Uses the ids registered by the {@link ThreadAgent} if present,
+     * and only falls back to a thread dump if the thread is unknown
+     */
     public long osId(Thread thread) {
-        ExtendedThreadInfo info = this.processThreads.get(thread);
-        if (info == null) {
-            processThreads.update();
+        long known = knownOsId(thread);
+        if (known > 0) {
+            return known;
+        }
+        synchronized (this) {
+            ExtendedThreadInfo info = processThreads().get(thread);
+            if (info == null) {
+                processThreads.update();
+            }
+            return this.processThreads.get(thread).osThreadId();
         }
-        return this.processThreads.get(thread).osThreadId();
+    }
+
+    /**
+     * Map multiple Java threads to their OS thread IDs, requiring at most one thread dump
+     * <p>
+     * Threads that terminated before they could be resolved are omitted
+     */
+    public List<Long> osIds(Collection<Thread> threads) {
+        List<Long> ids = new ArrayList<>(threads.size());
+        List<Thread> unknown = new ArrayList<>();
+        for (Thread thread : threads) {
+            long known = knownOsId(thread);
+            if (known > 0) {
+                ids.add(known);
+            } else {
+                unknown.add(thread);
+            }
+        }
+        if (unknown.isEmpty()) {
+            return ids;
+        }
+        synchronized (this) {
+            if (unknown.stream().anyMatch(thread -> processThreads().get(thread) == null)) {
+                processThreads.update();
+            }
+            for (Thread thread : unknown) {
+                ExtendedThreadInfo info = processThreads.get(thread);
+                if (info != null) {
+                    ids.add(info.osThreadId());
+                }
+            }
+        }
+        return ids;
     }
 
     /** Get the scheduling status for a given thread */
@@ -34,6 +145,14 @@ public class ThreadControl {
         return this.schedulerClient.getTaskStatus(osId(thread));
     }
 
+    /**
+     * Wait till the thread has the given status, e.g. till a schedule plan stopped it
+     * @return whether the status has been reached in time
+     */
+    public boolean awaitThreadStatus(Thread thread, RestSchedulerClient.TaskStatus status, Duration timeout) {
+        return this.schedulerClient.awaitStatus(osId(thread), status, timeout);
+    }
+
     /** Prevent a thread from being rescheduled */
     public void stopThread(Thread thread) {
         this.schedulerClient.stop(osId(thread));
@@ -43,4 +162,118 @@ public class ThreadControl {
     public void resumeThread(Thread thread) {
         this.schedulerClient.resume(osId(thread));
     }
+
+    /** Prevent multiple threads from being rescheduled, using a single scheduler request */
+    public void stopThreads(Collection<Thread> threads) {
+        this.schedulerClient.stop(osIds(threads));
+    }
+
+    /** Allow multiple threads to be rescheduled, using a single scheduler request */
+    public void resumeThreads(Collection<Thread> threads) {
+        this.schedulerClient.resume(osIds(threads));
+    }
+
+    /**
+     * Prevent all workers of a {@link java.util.concurrent.ForkJoinPool} or {@link java.util.concurrent.ThreadPoolExecutor}
+     * from being rescheduled, including workers that are started later
+     * <p>
+     * Accessing the workers of a {@code ThreadPoolExecutor} requires
+     * {@code --add-opens java.base/java.util.concurrent=ALL-UNNAMED}
+     */
+    public void stopPool(ExecutorService pool) {
+        setPoolSetting(pool, true, null);
+    }
+
+    /**
+     * Allow all workers of the pool to be rescheduled, keeping their lottery priority,
+     * and stop tracking its new workers if the pool has the default priority
+     */
+    public void resumePool(ExecutorService pool) {
+        setPoolSetting(pool, false, null);
+    }
+
+    /**
+     * Set the priority for the {@code LotteryScheduler} of all current and future workers of the pool,
+     * keeping whether the pool is stopped
+     */
+    public void setPoolLotteryPriority(ExecutorService pool, int lotteryPriority) {
+        if (lotteryPriority <= 0) {
+            throw new IllegalArgumentException("lotteryPriority has to be positive, got " + lotteryPriority);
+        }
+        setPoolSetting(pool, null, lotteryPriority);
+    }
+
+    /**
+     * Change the stop flag or the lottery priority of the pool, the other one is kept
+     * @param stop new stop flag or null to keep it
+     * @param lotteryPriority new lottery priority or null to keep it
+     */
+    private void setPoolSetting(ExecutorService pool, Boolean stop, Integer lotteryPriority) {
+        synchronized (poolSettingsLock) {
+            List<Long> ids = osIds(PoolThreads.getWorkers(pool));
+            PoolSetting setting;
+            synchronized (pools) {
+                PoolSetting old = pools.getOrDefault(pool, PoolSetting.DEFAULT);
+                setting = new PoolSetting(stop == null ? old.stop() : stop,
+                        lotteryPriority == null ? old.lotteryPriority() : lotteryPriority, new HashSet<>(ids));
+                if (setting.isDefault()) {
+                    pools.remove(pool);
+                } else {
+                    pools.put(pool, setting);
+                    if (poolTracker == null) {
+                        poolTracker = new Thread(this::trackPools, "ThreadControl-PoolTracker");
+                        poolTracker.setDaemon(true);
+                        poolTracker.start();
+                    }
+                }
+            }
+            if (lotteryPriority == null) {
+                // only send the stop flag, so that the scheduler keeps the priorities and deadlines
+                schedulerClient.setStopping(false, ids, setting.stop());
+            } else {
+                schedulerClient.setTaskSettings(ids, setting.stop(), setting.lotteryPriority());
+            }
+        }
+    }
+
+    /** Apply the pool settings to new workers */
+    private void trackPools() {
+        while (true) {
+            try {
+                Thread.sleep(POOL_TRACKING_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Map<ExecutorService, PoolSetting> current;
+            synchronized (pools) {
+                current = new IdentityHashMap<>(pools);
+            }
+            for (var entry : current.entrySet()) {
+                var pool = entry.getKey();
+                var setting = entry.getValue();
+                List<Thread> workers = PoolThreads.getWorkers(pool);
+                if (pool.isTerminated()) {
+                    synchronized (pools) {
+                        pools.remove(pool, setting);
+                    }
+                    continue;
+                }
+                List<Long> ids = osIds(workers);
+                synchronized (poolSettingsLock) {
+                    List<Long> newIds;
+                    synchronized (pools) {
+                        // the setting might have been changed in the meantime
+                        if (pools.get(pool) != setting) {
+                            continue;
+                        }
+                        newIds = ids.stream().filter(id -> !setting.appliedTo().contains(id)).toList();
+                        setting.appliedTo().addAll(newIds);
+                    }
+                    if (!newIds.isEmpty()) {
+                        schedulerClient.setTaskSettings(newIds, setting.stop(), setting.lotteryPriority());
+                    }
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,69 @@
+package me.bechberger.taskcontrol.junit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import static me.bechberger.taskcontrol.SchedulerServer.DEFAULT_PORT;
+
+/**
+ * Run the test body with many schedules that stop and resume its named threads,
+ * requires a running scheduler server
+ * <p>
+ * The test method must not have parameters and must start the threads itself,
+ * {@code @BeforeEach} and {@code @AfterEach} methods only run once around all schedules.
+ * Failing schedules are minimized and reported as per thread plans that can be passed to {@link #replay()}:
+ * <pre>{@code
+ * @ExploreInterleavings(threads = {"writer", "reader"}, schedules = 500)
+ * void race() throws InterruptedException {
+ *     var writer = new Thread(this::write, "writer");
+ *     ...
+ * }
+ * }</pre>
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Test
+@ExtendWith(InterleavingExtension.class)
+public @interface ExploreInterleavings {
+
+    enum Mode {
+        /** Random subsets of the threads are stopped for random durations */
+        RANDOM,
+        /** All schedules that stop at most one thread per step, till {@link #schedules()} is reached */
+        EXHAUSTIVE
+    }
+
+    /** Names of the threads to stop and resume */
+    String[] threads();
+
+    /** Maximum number of schedules to explore */
+    int schedules() default 100;
+
+    Mode mode() default Mode.RANDOM;
+
+    /** Number of steps per schedule, in each step a set of the threads is stopped */
+    int steps() default 4;
+
+    /** Duration of a step, random schedules use durations between 1ms and twice this */
+    long stepMillis() default 5;
+
+    /** Seed for random schedules, 0 for a random seed */
+    long seed() default 0;
+
+    /**
+     * Number of forked JVMs that explore in parallel, each controlled as its own task group,
+     * 0 for the number of available processors and 1 to explore in the test JVM
+     */
+    int forks() default 0;
+
+    /** Only run the given schedule, as reported for a failure (e.g. {@code writer=0.005s,0.01r;reader=0.015r}) */
+    String replay() default "";
+
+    /** Port of the scheduler server */
+    int port() default DEFAULT_PORT;
+}
@@ -0,0 +1,162 @@
+package me.bechberger.taskcontrol.junit;
+
+import me.bechberger.taskcontrol.RestSchedulerClient;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Forked JVMs that run schedules with the {@link InterleavingRunner} in parallel
+ * <p>
+ * Every fork is its own task group, which is registered with an explicit running setting,
+ * so that the rules of the scheduler don't apply to it, and cleared when the fork is closed
+ */
+class ForkedRunners implements ScheduleExplorer {
+
+    /** Time a schedule may take in addition to its duration before the fork is considered hanging */
+    private static final Duration RUN_TIMEOUT = Duration.ofSeconds(30);
+
+    private class Fork {
+        private final Process process;
+        private final PrintStream schedules;
+        private final BufferedReader results;
+
+        Fork() {
+            List<String> command = new ArrayList<>();
+            command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            // the agent and opened modules are needed to control the threads, other options might conflict
+            for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                if (argument.startsWith("-javaagent:") || argument.startsWith("--add-opens")) {
+                    command.add(argument);
+                }
+            }
+            command.addAll(List.of("-cp", System.getProperty("java.class.path"),
+                    InterleavingRunner.class.getName(), String.valueOf(port), testClass, testMethod));
+            try {
+                process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            schedules = new PrintStream(process.getOutputStream(), true, StandardCharsets.UTF_8);
+            results = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            String response = client.setTaskGroupSettings(List.of(process.pid()), false, 1).strip();
+            if (!response.equals("ok")) {
+                process.destroyForcibly();
+                throw new IllegalStateException("Could not register fork " + process.pid() + ": " + response);
+            }
+        }
+
+        /** Returns the failure message, or empty if the schedule passed */
+        Optional<String> run(InterleavingSchedule schedule) {
+            schedules.println(schedule);
+            var result = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return results.readLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            String line;
+            try {
+                line = result.get(schedule.duration().plus(RUN_TIMEOUT).toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                return Optional.of("Timed out after " + RUN_TIMEOUT.getSeconds() + "s, possibly a deadlock");
+            } catch (ExecutionException | InterruptedException e) {
+                return Optional.of("Fork failed: " + e);
+            }
+            if (line == null) {
+                return Optional.of("Fork exited with " + process.onExit().join().exitValue());
+            }
+            if (line.equals("ok")) {
+                return Optional.empty();
+            }
+            return Optional.of(InterleavingRunner.decodeFailure(line.substring("fail ".length())));
+        }
+
+        boolean isAlive() {
+            return process.isAlive();
+        }
+
+        void close() {
+            schedules.close();
+            process.destroyForcibly();
+            client.clearGroupSetting(process.pid());
+        }
+    }
+
+    private final int port;
+    private final String testClass;
+    private final String testMethod;
+    private final RestSchedulerClient client;
+    private final List<Fork> forks = new ArrayList<>();
+
+    ForkedRunners(int port, String testClass, String testMethod, int count) {
+        this.port = port;
+        this.testClass = testClass;
+        this.testMethod = testMethod;
+        this.client = new RestSchedulerClient(port);
+        for (int i = 0; i < count; i++) {
+            forks.add(new Fork());
+        }
+    }
+
+    /** Run the schedules on all forks in parallel till the first failure */
+    @Override
+    public Optional<Failure> run(List<InterleavingSchedule> schedules) {
+        var queue = new ConcurrentLinkedQueue<>(schedules);
+        AtomicReference<Failure> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < forks.size(); i++) {
+            int index = i;
+            workers.add(Thread.ofPlatform().name("InterleavingFork-" + i).start(() -> {
+                InterleavingSchedule schedule;
+                while (failure.get() == null && (schedule = queue.poll()) != null) {
+                    var message = runOn(index, schedule);
+                    if (message.isPresent()) {
+                        failure.compareAndSet(null, new Failure(schedule, message.get()));
+                    }
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        return Optional.ofNullable(failure.get());
+    }
+
+    /** Run the schedule on the fork, replacing the fork if it didn't survive */
+    private Optional<String> runOn(int index, InterleavingSchedule schedule) {
+        var message = forks.get(index).run(schedule);
+        if (!forks.get(index).isAlive() || message.filter(m -> m.startsWith("Timed out")).isPresent()) {
+            forks.get(index).close();
+            forks.set(index, new Fork());
+        }
+        return message;
+    }
+
+    @Override
+    public void close() {
+        forks.forEach(Fork::close);
+    }
+}
@@ -0,0 +1,110 @@
+package me.bechberger.taskcontrol.junit;
+
+import me.bechberger.taskcontrol.ThreadControl;
+import org.junit.jupiter.api.extension.ExtensionConfigurationException;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.jupiter.api.extension.InvocationInterceptor;
+import org.junit.jupiter.api.extension.ReflectiveInvocationContext;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Explores the schedules of tests annotated with {@link ExploreInterleavings}
+ * and reports the minimal failing schedule
+ */
+public class InterleavingExtension implements InvocationInterceptor {
+
+    /** Runs of each smaller schedule while minimizing, as the failures are usually not deterministic */
+    private static final int SHRINK_ATTEMPTS = 3;
+
+    /** Runs the schedules one after another in the test JVM */
+    private record InProcessExplorer(InterleavingRunner runner) implements ScheduleExplorer {
+        @Override
+        public Optional<Failure> run(List<InterleavingSchedule> schedules) {
+            for (InterleavingSchedule schedule : schedules) {
+                Throwable failure = runner.run(schedule);
+                if (failure != null) {
+                    return Optional.of(new Failure(schedule, InterleavingRunner.stackTrace(failure)));
+                }
+            }
+            return Optional.empty();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Override
+    public void interceptTestMethod(Invocation<Void> invocation, ReflectiveInvocationContext<Method> invocationContext,
+                                    ExtensionContext extensionContext) throws Throwable {
+        Method method = invocationContext.getExecutable();
+        ExploreInterleavings config = method.getAnnotation(ExploreInterleavings.class);
+        if (method.getParameterCount() != 0) {
+            throw new ExtensionConfigurationException("@ExploreInterleavings methods must not have parameters");
+        }
+        if (config.threads().length == 0 || config.steps() <= 0 || config.stepMillis() <= 0) {
+            throw new ExtensionConfigurationException("@ExploreInterleavings requires threads and positive steps and stepMillis");
+        }
+        invocation.skip();
+        List<InterleavingSchedule> schedules = config.replay().isEmpty() ? createSchedules(config) :
+                List.of(InterleavingSchedule.parse(config.replay()));
+        int forks = Math.min(config.forks() == 0 ? Runtime.getRuntime().availableProcessors() : config.forks(),
+                schedules.size());
+        try (ScheduleExplorer explorer = forks <= 1 ?
+                new InProcessExplorer(new InterleavingRunner(new ThreadControl(config.port()),
+                        invocationContext.getTarget().orElseThrow(), method)) :
+                new ForkedRunners(config.port(), method.getDeclaringClass().getName(), method.getName(), forks)) {
+            var failure = explorer.run(schedules);
+            if (failure.isEmpty()) {
+                return;
+            }
+            if (failure.get().message().startsWith(ExtensionConfigurationException.class.getName())) {
+                // the schedule wasn't applied, so there is nothing to minimize
+                throw new ExtensionConfigurationException("Failed to apply schedule " + failure.get().schedule()
+                        + "\n" + failure.get().message());
+            }
+            var minimal = minimize(explorer, failure.get());
+            throw new AssertionError("Failed with schedule " + minimal.schedule() +
+                    " (minimized from " + failure.get().schedule() + "), reproduce with " +
+                    "@ExploreInterleavings(threads = ..., replay = \"" + minimal.schedule() + "\")\n" + minimal.message());
+        }
+    }
+
+    private static List<InterleavingSchedule> createSchedules(ExploreInterleavings config) {
+        List<String> threads = List.of(config.threads());
+        return switch (config.mode()) {
+            case RANDOM -> {
+                Random random = config.seed() == 0 ? new Random() : new Random(config.seed());
+                yield Stream.generate(() ->
+                                InterleavingSchedule.random(threads, config.steps(), config.stepMillis(), random))
+                        .limit(config.schedules()).toList();
+            }
+            case EXHAUSTIVE -> InterleavingSchedule.exhaustive(threads, config.steps(), config.stepMillis(),
+                    config.schedules());
+        };
+    }
+
+    /** Greedily replace the failing schedule by smaller ones that still fail */
+    private static ScheduleExplorer.Failure minimize(ScheduleExplorer explorer, ScheduleExplorer.Failure failure) {
+        var current = failure;
+        boolean shrunk = true;
+        while (shrunk) {
+            shrunk = false;
+            for (InterleavingSchedule smaller : current.schedule().shrink()) {
+                var smallerFailure = explorer.run(Collections.nCopies(SHRINK_ATTEMPTS, smaller));
+                if (smallerFailure.isPresent()) {
+                    current = smallerFailure.get();
+                    shrunk = true;
+                    break;
+                }
+            }
+        }
+        return current;
+    }
+}
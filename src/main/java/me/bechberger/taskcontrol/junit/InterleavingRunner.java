@@ -0,0 +1,178 @@
+package me.bechberger.taskcontrol.junit;
+
+import me.bechberger.taskcontrol.ThreadControl;
+import org.junit.jupiter.api.extension.ExtensionConfigurationException;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the test body with a schedule in the current JVM
+ * <p>
+ * Also the main class of the forked JVMs, which read schedules from stdin
+ * and report {@code ok} or {@code fail <base64 stack trace>} for each on stdout
+ */
+public class InterleavingRunner {
+
+    /** Time to wait for the named threads to be started */
+    private static final Duration THREAD_START_TIMEOUT = Duration.ofSeconds(1);
+
+    private final ThreadControl threadControl;
+    private final Object instance;
+    private final Method method;
+
+    public InterleavingRunner(ThreadControl threadControl, Object instance, Method method) {
+        this.threadControl = threadControl;
+        this.instance = instance;
+        this.method = method;
+        method.setAccessible(true);
+    }
+
+    /**
+     * Run the test body once, returns its failure or null
+     * <p>
+     * Fails with an {@link ExtensionConfigurationException} if not all named threads could be found,
+     * as the schedule has then not been applied
+     */
+    public Throwable run(InterleavingSchedule schedule) {
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicReference<Throwable> controlFailure = new AtomicReference<>();
+        Thread controller = new Thread(() -> control(schedule, done, controlFailure), "InterleavingController");
+        controller.setDaemon(true);
+        controller.start();
+        Throwable failure = null;
+        try {
+            method.invoke(instance);
+        } catch (InvocationTargetException e) {
+            failure = e.getCause();
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            done.set(true);
+            try {
+                controller.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (controlFailure.get() == null) {
+            return failure;
+        }
+        if (failure != null) {
+            controlFailure.get().addSuppressed(failure);
+        }
+        return controlFailure.get();
+    }
+
+    /** Apply the steps of the schedule to the named threads, resuming all of them at the end */
+    private void control(InterleavingSchedule schedule, AtomicBoolean done, AtomicReference<Throwable> failure) {
+        long start = System.nanoTime();
+        Map<String, Thread> threads = findThreads(schedule.threads(), done);
+        if (threads.size() < schedule.threads().size()) {
+            List<String> missing = schedule.threads().stream().filter(name -> !threads.containsKey(name)).toList();
+            failure.set(new ExtensionConfigurationException("Threads " + missing + " were not found "
+                    + (done.get() ? "while the test body ran" : "within " + THREAD_START_TIMEOUT.toMillis() + "ms")
+                    + ", so the schedule couldn't be applied"));
+            return;
+        }
+        Duration lookup = Duration.ofNanos(System.nanoTime() - start);
+        Duration firstStep = schedule.steps().getFirst().duration();
+        if (lookup.compareTo(firstStep) > 0) {
+            System.err.println("InterleavingRunner: finding the threads " + schedule.threads() + " took "
+                    + lookup.toMillis() + "ms, longer than the first step of " + firstStep.toMillis()
+                    + "ms, so the threads ran unscheduled in the meantime");
+        }
+        try {
+            for (InterleavingSchedule.Step step : schedule.steps()) {
+                if (done.get()) {
+                    break;
+                }
+                List<Thread> stopped = new ArrayList<>();
+                List<Thread> running = new ArrayList<>();
+                threads.forEach((name, thread) -> (step.stopped().contains(name) ? stopped : running).add(thread));
+                threadControl.stopThreads(stopped);
+                threadControl.resumeThreads(running);
+                Thread.sleep(step.duration());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            threadControl.resumeThreads(threads.values());
+        }
+    }
+
+    /** Wait till all named threads are alive, the test body finished or the timeout is reached */
+    private static Map<String, Thread> findThreads(List<String> names, AtomicBoolean done) {
+        Map<String, Thread> threads = new HashMap<>();
+        long deadline = System.nanoTime() + THREAD_START_TIMEOUT.toNanos();
+        while (!done.get() && System.nanoTime() < deadline) {
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (names.contains(thread.getName()) && thread.isAlive()) {
+                    threads.putIfAbsent(thread.getName(), thread);
+                }
+            }
+            if (threads.size() == names.size()) {
+                break;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return threads;
+    }
+
+    static String stackTrace(Throwable failure) {
+        StringWriter writer = new StringWriter();
+        failure.printStackTrace(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    static String encodeFailure(Throwable failure) {
+        return Base64.getEncoder().encodeToString(stackTrace(failure).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String decodeFailure(String encoded) {
+        return new String(Base64.getDecoder().decode(encoded), StandardCharsets.UTF_8);
+    }
+
+    /** Arguments: scheduler port, test class, test method */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: InterleavingRunner <port> <test class> <test method>");
+            System.exit(1);
+        }
+        // keep stdout for the results, the output of the test body goes to stderr
+        PrintStream results = System.out;
+        System.setOut(System.err);
+        Class<?> testClass = Class.forName(args[1]);
+        var constructor = testClass.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        var runner = new InterleavingRunner(new ThreadControl(Integer.parseInt(args[0])),
+                constructor.newInstance(), testClass.getDeclaredMethod(args[2]));
+        var reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            Throwable failure = runner.run(InterleavingSchedule.parse(line));
+            results.println(failure == null ? "ok" : "fail " + encodeFailure(failure));
+            results.flush();
+        }
+        System.exit(0);
+    }
+}
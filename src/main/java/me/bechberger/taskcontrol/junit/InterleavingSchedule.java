@@ -0,0 +1,174 @@
+package me.bechberger.taskcontrol.junit;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Sequence of steps, in each step the given threads are stopped and all others are running
+ * <p>
+ * The string representation consists of the plan of every thread in the format of the scheduler server,
+ * e.g. {@code writer=0.005s,0.01r;reader=0.015r}
+ * @param threads names of all controlled threads
+ */
+public record InterleavingSchedule(List<String> threads, List<Step> steps) {
+
+    public record Step(Set<String> stopped, Duration duration) {
+        public Step {
+            if (duration.isNegative() || duration.isZero()) {
+                throw new IllegalArgumentException("Step duration must be positive, got " + duration);
+            }
+        }
+    }
+
+    public InterleavingSchedule {
+        if (steps.isEmpty()) {
+            throw new IllegalArgumentException("Schedule must have at least one step");
+        }
+        threads = List.copyOf(threads);
+        steps = List.copyOf(steps);
+    }
+
+    public Duration duration() {
+        return steps.stream().map(Step::duration).reduce(Duration.ZERO, Duration::plus);
+    }
+
+    /** Plan for the thread, usable with {@code /task/plan/{id}?plan=...} */
+    public String plan(String thread) {
+        List<String> items = new ArrayList<>();
+        long nanos = 0;
+        boolean stopped = steps.getFirst().stopped().contains(thread);
+        for (Step step : steps) {
+            boolean stepStopped = step.stopped().contains(thread);
+            if (stepStopped != stopped) {
+                items.add(formatItem(nanos, stopped));
+                nanos = 0;
+                stopped = stepStopped;
+            }
+            nanos += step.duration().toNanos();
+        }
+        items.add(formatItem(nanos, stopped));
+        return String.join(",", items);
+    }
+
+    private static String formatItem(long nanos, boolean stopped) {
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString() + (stopped ? "s" : "r");
+    }
+
+    @Override
+    public String toString() {
+        return threads.stream().map(thread -> thread + "=" + plan(thread)).collect(Collectors.joining(";"));
+    }
+
+    /** Parse the string representation, see {@link #toString()} */
+    public static InterleavingSchedule parse(String schedule) {
+        Map<String, List<long[]>> plans = new LinkedHashMap<>();
+        TreeSet<Long> boundaries = new TreeSet<>();
+        for (String part : schedule.strip().split(";")) {
+            String[] threadAndPlan = part.split("=", 2);
+            if (threadAndPlan.length != 2 || !threadAndPlan[1].matches("(\\d+\\.?\\d*[sr],)*\\d+\\.?\\d*[sr]")) {
+                throw new IllegalArgumentException("Invalid schedule part '" + part + "', expected e.g. writer=0.005s,0.01r");
+            }
+            // items as [end in ns, stopped]
+            List<long[]> items = new ArrayList<>();
+            long end = 0;
+            for (String item : threadAndPlan[1].split(",")) {
+                end += new BigDecimal(item.substring(0, item.length() - 1)).movePointRight(9).longValue();
+                items.add(new long[]{end, item.endsWith("s") ? 1 : 0});
+                boundaries.add(end);
+            }
+            plans.put(threadAndPlan[0].strip(), items);
+        }
+        List<Step> steps = new ArrayList<>();
+        long start = 0;
+        for (long end : boundaries) {
+            if (end == start) {
+                continue;
+            }
+            Set<String> stopped = new HashSet<>();
+            for (var entry : plans.entrySet()) {
+                for (long[] item : entry.getValue()) {
+                    if (item[0] >= end) {
+                        if (item[1] == 1) {
+                            stopped.add(entry.getKey());
+                        }
+                        break;
+                    }
+                }
+            }
+            steps.add(new Step(stopped, Duration.ofNanos(end - start)));
+            start = end;
+        }
+        return new InterleavingSchedule(List.copyOf(plans.keySet()), steps);
+    }
+
+    /** Schedules that are smaller by one step or one stopped thread in a step, the smallest first */
+    public List<InterleavingSchedule> shrink() {
+        List<InterleavingSchedule> smaller = new ArrayList<>();
+        if (steps.size() > 1) {
+            for (int i = 0; i < steps.size(); i++) {
+                List<Step> without = new ArrayList<>(steps);
+                without.remove(i);
+                smaller.add(new InterleavingSchedule(threads, without));
+            }
+        }
+        for (int i = 0; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            for (String thread : step.stopped()) {
+                Set<String> stopped = new HashSet<>(step.stopped());
+                stopped.remove(thread);
+                List<Step> changed = new ArrayList<>(steps);
+                changed.set(i, new Step(stopped, step.duration()));
+                smaller.add(new InterleavingSchedule(threads, changed));
+            }
+        }
+        return smaller;
+    }
+
+    /** Stop a random subset of the threads in every step for 1ms to {@code 2 * stepMillis} */
+    public static InterleavingSchedule random(List<String> threads, int steps, long stepMillis, Random random) {
+        List<Step> result = new ArrayList<>();
+        for (int i = 0; i < steps; i++) {
+            Set<String> stopped = new HashSet<>();
+            for (String thread : threads) {
+                if (random.nextBoolean()) {
+                    stopped.add(thread);
+                }
+            }
+            result.add(new Step(stopped, Duration.ofMillis(1 + random.nextLong(2 * stepMillis))));
+        }
+        return new InterleavingSchedule(threads, result);
+    }
+
+    /**
+     * All schedules (up to the limit) that stop at most one thread per step,
+     * starting with the schedule that stops no thread
+     */
+    public static List<InterleavingSchedule> exhaustive(List<String> threads, int steps, long stepMillis, int limit) {
+        List<InterleavingSchedule> result = new ArrayList<>();
+        int choices = threads.size() + 1;
+        for (long index = 0; result.size() < limit; index++) {
+            List<Step> scheduleSteps = new ArrayList<>();
+            long rest = index;
+            for (int i = 0; i < steps; i++) {
+                int choice = (int) (rest % choices);
+                rest /= choices;
+                scheduleSteps.add(new Step(choice == 0 ? Set.of() : Set.of(threads.get(choice - 1)),
+                        Duration.ofMillis(stepMillis)));
+            }
+            if (rest > 0) {
+                break;
+            }
+            result.add(new InterleavingSchedule(threads, scheduleSteps));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,17 @@
+package me.bechberger.taskcontrol.junit;
+
+import java.util.List;
+import java.util.Optional;
+
+/** Runs the test body with schedules, in the test JVM or in forks */
+interface ScheduleExplorer extends AutoCloseable {
+
+    /** @param message failure message including the stack trace */
+    record Failure(InterleavingSchedule schedule, String message) {}
+
+    /** Run the schedules till the first failure */
+    Optional<Failure> run(List<InterleavingSchedule> schedules);
+
+    @Override
+    void close();
+}
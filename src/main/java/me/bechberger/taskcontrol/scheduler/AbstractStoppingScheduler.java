@@ -0,0 +1,489 @@
+package me.bechberger.taskcontrol.scheduler;
+
+import me.bechberger.ebpf.annotations.AlwaysInline;
+import me.bechberger.ebpf.annotations.Type;
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.annotations.bpf.BPFFunction;
+import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
+import me.bechberger.ebpf.bpf.BPFProgram;
+import me.bechberger.ebpf.bpf.GlobalVariable;
+import me.bechberger.ebpf.bpf.map.BPFArray;
+import me.bechberger.ebpf.bpf.map.BPFHashMap;
+import me.bechberger.ebpf.runtime.BpfDefinitions;
+import me.bechberger.ebpf.runtime.TaskDefinitions;
+import me.bechberger.ebpf.type.Ptr;
+
+import static me.bechberger.ebpf.runtime.ScxDefinitions.*;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.*;
+
+/**
+ * Settings, rules and resume handling shared by all schedulers
+ * <p>
+ * Subclasses call {@link #initKickTimer()} in their {@code init}, {@link #initTaskState(Ptr)} when a task
+ * is enabled, {@link #clearTaskState(Ptr)} when it exits and {@link #recordResumeLatency(Ptr)} when it
+ * starts running. They have to put their shared DSQs at the ids {@code 0..MAX_SHARED_DSQS-1}.
+ */
+public abstract class AbstractStoppingScheduler extends BPFProgram implements BaseScheduler {
+
+    /** Number of DSQ ids checked for queued tasks by the kick timer */
+    static final int MAX_SHARED_DSQS = 2;
+
+    /**
+     * Period of the kick timer while tasks are queued, bounds the resume latency
+     * when all CPUs are idle and no tick processes the resume requests
+     */
+    static final int KICK_INTERVAL_NS = 1_000_000;
+
+    @Type
+    record KickTimer(BpfDefinitions.bpf_timer timer) {
+    }
+
+    @BPFMapDefinition(maxEntries = 10000)
+    BPFHashMap<Integer, TaskSetting> taskSettings;
+
+    @BPFMapDefinition(maxEntries = 10000)
+    BPFHashMap<Integer, TaskSetting> taskGroupSettings;
+
+    @BPFMapDefinition(maxEntries = MAX_RULES)
+    BPFHashMap<Integer, TaskRule> taskRules;
+
+    /** Rule match per task, computed when the task is enabled */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFHashMap<Integer, RuleMatch> ruleMatches;
+
+    final GlobalVariable<Integer> ruleGeneration = new GlobalVariable<>(0);
+
+    @BPFMapDefinition(maxEntries = RESUME_QUEUE_SIZE)
+    BPFArray<Integer> resumeRequests;
+
+    final GlobalVariable<Long> resumeHead = new GlobalVariable<>(0L);
+    /** Number of processed resume requests */
+    final GlobalVariable<Long> resumeTail = new GlobalVariable<>(0L);
+
+    @BPFMapDefinition(maxEntries = 10000)
+    BPFHashMap<Integer, Long> pendingResumes;
+
+    final GlobalVariable<Long> resumeCount = new GlobalVariable<>(0L);
+    final GlobalVariable<Long> resumeLatencySum = new GlobalVariable<>(0L);
+    final GlobalVariable<Long> resumeLatencyMax = new GlobalVariable<>(0L);
+
+    @BPFMapDefinition(maxEntries = 1)
+    BPFArray<KickTimer> kickTimers;
+
+    /** {@code bpf_ktime_get_ns()} at which the kick timer fires, 0 if it is not armed */
+    final GlobalVariable<@Unsigned Long> kickTimerExpiry = new GlobalVariable<>(0L);
+
+    /** Earliest time at which the kick timer kicks an idle CPU for {@link #kickPid}, 0 if none */
+    final GlobalVariable<@Unsigned Long> kickAt = new GlobalVariable<>(0L);
+    final GlobalVariable<Integer> kickPid = new GlobalVariable<>(0);
+
+    /** Eight bytes of the comm, {@code part} 0 or 1, to notice renamed threads */
+    @BPFFunction
+    @AlwaysInline
+    public @Unsigned long commPart(Ptr<TaskDefinitions.task_struct> p, int part) {
+        String CODE = """
+                    return ((u64 *) p->comm)[part & 1];
+                """;
+        return 0;
+    }
+
+    @BPFFunction
+    @AlwaysInline
+    public boolean ruleMatchesTask(Ptr<TaskRule> rule, Ptr<TaskDefinitions.task_struct> p) {
+        String CODE = """
+                    if (rule->tgid != 0 && rule->tgid != p->tgid) {
+                        return false;
+                    }
+                    for (int i = 0; i < TASK_COMM_LEN; i++) {
+                        char c = rule->comm[i];
+                        if (c == 0) {
+                            return rule->prefix || p->comm[i] == 0;
+                        }
+                        if (c != p->comm[i]) {
+                            return false;
+                        }
+                    }
+                    return true;
+                """;
+        return false;
+    }
+
+    /** Get the cached rule match for the task, re-evaluating the rules if they or the comm changed */
+    @BPFFunction
+    @AlwaysInline
+    public void getRuleMatch(Ptr<TaskDefinitions.task_struct> p, Ptr<RuleMatch> out) {
+        int generation = ruleGeneration.get();
+        @Unsigned long commLow = commPart(p, 0);
+        @Unsigned long commHigh = commPart(p, 1);
+        var cached = ruleMatches.bpf_get(p.val().pid);
+        if (cached != null && cached.val().generation() == generation &&
+                cached.val().commLow() == commLow && cached.val().commHigh() == commHigh) {
+            out.set(cached.val());
+            return;
+        }
+        out.set(new RuleMatch(generation, commLow, commHigh, false, new TaskSetting(false, 1, 0)));
+        for (int i = 0; i < MAX_RULES; i++) {
+            var rule = taskRules.bpf_get(i);
+            if (rule == null) {
+                break;
+            }
+            if (ruleMatchesTask(rule, p)) {
+                out.set(new RuleMatch(generation, commLow, commHigh, true, rule.val().setting()));
+                break;
+            }
+        }
+        ruleMatches.bpf_put(p.val().pid, out.val());
+    }
+
+    /** Evaluate the rules for a newly enabled task */
+    @BPFFunction
+    @AlwaysInline
+    public void initTaskState(Ptr<TaskDefinitions.task_struct> p) {
+        RuleMatch match = new RuleMatch(0, 0, 0, false, new TaskSetting(false, 1, 0));
+        getRuleMatch(p, Ptr.of(match));
+    }
+
+    /** Remove the per task state of an exiting task */
+    @BPFFunction
+    @AlwaysInline
+    public void clearTaskState(Ptr<TaskDefinitions.task_struct> p) {
+        ruleMatches.bpf_delete(p.val().pid);
+        pendingResumes.bpf_delete(p.val().pid);
+    }
+
+    /** Explicit task settings take precedence over task group settings, which take precedence over rules */
+    @BPFFunction
+    @AlwaysInline
+    public void getSetting(Ptr<TaskDefinitions.task_struct> p, Ptr<TaskSetting> out) {
+        var taskSetting = taskSettings.bpf_get(p.val().pid);
+        if (taskSetting != null) {
+            out.set(taskSetting.val());
+            return;
+        }
+        var groupSetting = taskGroupSettings.bpf_get(p.val().tgid);
+        if (groupSetting != null) {
+            out.set(groupSetting.val());
+            return;
+        }
+        RuleMatch match = new RuleMatch(0, 0, 0, false, new TaskSetting(false, 1, 0));
+        getRuleMatch(p, Ptr.of(match));
+        if (match.matched()) {
+            out.set(match.setting());
+            return;
+        }
+        out.set(new TaskSetting(false, 1, 0));
+    }
+
+    @BPFFunction
+    @AlwaysInline
+    public boolean shouldStop(Ptr<TaskDefinitions.task_struct> p) {
+        TaskSetting setting = new TaskSetting(false, 1, 0);
+        getSetting(p, Ptr.of(setting));
+        return setting.stop();
+    }
+
+    /**
+     * Preempt the task right away if it has been stopped after it was moved to a local DSQ,
+     * e.g. as part of a dispatch batch, it is then enqueued again and skipped by the dispatch
+     */
+    @BPFFunction
+    @AlwaysInline
+    public void preemptIfStopped(Ptr<TaskDefinitions.task_struct> p) {
+        String CODE = """
+                    if (shouldStop(p)) {
+                        p->scx.slice = 0;
+                        scx_bpf_kick_cpu(scx_bpf_task_cpu(p), SCX_KICK_PREEMPT);
+                    }
+                """;
+    }
+
+    /** Kick an idle CPU that the task can run on */
+    @BPFFunction
+    @AlwaysInline
+    public void kickIdleCpuFor(int pid) {
+        String CODE = """
+                    struct task_struct *p = bpf_task_from_pid(pid);
+                    if (!p) {
+                        return;
+                    }
+                    s32 cpu = scx_bpf_pick_idle_cpu(p->cpus_ptr, 0);
+                    if (cpu >= 0) {
+                        scx_bpf_kick_cpu(cpu, SCX_KICK_IDLE);
+                    }
+                    bpf_task_release(p);
+                """;
+    }
+
+    /** Kick an idle CPU for every runnable and not stopped task of the task group */
+    @BPFFunction
+    @AlwaysInline
+    public void kickIdleCpusForGroup(int tgid) {
+        String CODE = """
+                    struct task_struct *p;
+                    for (u64 dsq = 0; dsq < MAX_SHARED_DSQS; dsq++) {
+                        if (scx_bpf_dsq_nr_queued(dsq) <= 0) {
+                            continue;
+                        }
+                        bpf_for_each(scx_dsq, p, dsq, 0) {
+                            if (p->tgid != tgid || shouldStop(p)) {
+                                continue;
+                            }
+                            s32 cpu = scx_bpf_pick_idle_cpu(p->cpus_ptr, 0);
+                            if (cpu < 0) {
+                                return;
+                            }
+                            scx_bpf_kick_cpu(cpu, SCX_KICK_IDLE);
+                        }
+                    }
+                """;
+    }
+
+    @BPFFunction
+    @AlwaysInline
+    public boolean hasQueuedTasks() {
+        String CODE = """
+                    for (u64 dsq = 0; dsq < MAX_SHARED_DSQS; dsq++) {
+                        if (scx_bpf_dsq_nr_queued(dsq) > 0) {
+                            return true;
+                        }
+                    }
+                    return false;
+                """;
+        return false;
+    }
+
+    /**
+     * Number of tasks a dispatch call may move from the DSQ to a local DSQ: the number of tasks
+     * that the idle CPUs can't take, at least one and at most {@code batchSize}, so that batching
+     * never takes tasks away from idle CPUs
+     */
+    @BPFFunction
+    @AlwaysInline
+    public @Unsigned int batchLimit(long dsq, @Unsigned int batchSize) {
+        String CODE = """
+                    if (batchSize <= 1) {
+                        return 1;
+                    }
+                    const struct cpumask *idle = scx_bpf_get_idle_cpumask();
+                    s32 surplus = scx_bpf_dsq_nr_queued(dsq) - (s32) bpf_cpumask_weight(idle);
+                    scx_bpf_put_idle_cpumask(idle);
+                    if (surplus <= 1) {
+                        return 1;
+                    }
+                    return (u32) surplus < batchSize ? surplus : batchSize;
+                """;
+        return 0;
+    }
+
+    /** Let the kick timer fire in at most {@code delay} nanoseconds */
+    @BPFFunction
+    @AlwaysInline
+    public void armKickTimer(@Unsigned long delay) {
+        String CODE = """
+                    u64 now = bpf_ktime_get_ns();
+                    u64 expiry = kickTimerExpiry;
+                    if (expiry > now && expiry <= now + delay) {
+                        return;
+                    }
+                    if (__sync_val_compare_and_swap(&kickTimerExpiry, expiry, now + delay) != expiry) {
+                        return;
+                    }
+                    u32 key = 0;
+                    struct KickTimer *timer = bpf_map_lookup_elem(&kickTimers, &key);
+                    if (timer) {
+                        bpf_timer_start(&timer->timer, delay, 0);
+                    }
+                """;
+    }
+
+    /**
+     * Kick idle CPUs for all resume requests that have not been processed yet
+     * and keep the kick timer running while tasks are queued
+     */
+    @BPFFunction
+    @AlwaysInline
+    public void processResumeRequests() {
+        String CODE = """
+                    u64 head = resumeHead;
+                    for (int i = 0; i < RESUME_QUEUE_SIZE; i++) {
+                        u64 tail = resumeTail;
+                        if (tail >= head) {
+                            break;
+                        }
+                        if (__sync_val_compare_and_swap(&resumeTail, tail, tail + 1) != tail) {
+                            continue;
+                        }
+                        u32 index = tail % RESUME_QUEUE_SIZE;
+                        s32 *id = bpf_map_lookup_elem(&resumeRequests, &index);
+                        if (id && *id > 0) {
+                            kickIdleCpuFor(*id);
+                        } else if (id && *id < 0) {
+                            kickIdleCpusForGroup(-*id);
+                        }
+                    }
+                    if (hasQueuedTasks()) {
+                        armKickTimer(KICK_INTERVAL_NS);
+                    }
+                """;
+    }
+
+    /**
+     * Kick an idle CPU for the task at the given time, e.g. when it is no longer held back,
+     * only the earliest request is kept, later ones have to be requested again by the next dispatch
+     */
+    @BPFFunction
+    @AlwaysInline
+    public void requestKick(int pid, @Unsigned long at) {
+        String CODE = """
+                    u64 current = kickAt;
+                    if (current != 0 && current <= at) {
+                        return;
+                    }
+                    if (__sync_val_compare_and_swap(&kickAt, current, at) != current) {
+                        return;
+                    }
+                    kickPid = pid;
+                    u64 now = bpf_ktime_get_ns();
+                    armKickTimer(at > now ? at - now : 0);
+                """;
+    }
+
+    /**
+     * Process the resume requests and kick requests independently of dispatch and tick, which don't run
+     * when all CPUs are idle, re-arms itself while tasks are queued
+     */
+    @BPFFunction
+    public int kickTimerCallback(Ptr<?> map, Ptr<Integer> key, Ptr<KickTimer> timer) {
+        String CODE = """
+                    u64 now = bpf_ktime_get_ns();
+                    u64 expiry = kickTimerExpiry;
+                    if (expiry <= now) {
+                        __sync_val_compare_and_swap(&kickTimerExpiry, expiry, 0);
+                    }
+                    u64 at = kickAt;
+                    if (at != 0 && at <= now && __sync_val_compare_and_swap(&kickAt, at, 0) == at) {
+                        kickIdleCpuFor(kickPid);
+                    }
+                    processResumeRequests();
+                    return 0;
+                """;
+        return 0;
+    }
+
+    @BPFFunction
+    @AlwaysInline
+    public int initKickTimer() {
+        String CODE = """
+                    u32 key = 0;
+                    struct KickTimer *timer = bpf_map_lookup_elem(&kickTimers, &key);
+                    if (!timer) {
+                        return -1;
+                    }
+                    bpf_timer_init(&timer->timer, &kickTimers, 1 /* CLOCK_MONOTONIC */);
+                    bpf_timer_set_callback(&timer->timer, kickTimerCallback);
+                    return 0;
+                """;
+        return 0;
+    }
+
+    /**
+     * Atomically raise the value to at least {@code value}, with a compare-and-swap loop,
+     * bounded for the verifier, as concurrent updates only ever raise it
+     */
+    @BPFFunction
+    @AlwaysInline
+    public void atomicMax(Ptr<Long> max, long value) {
+        String CODE = """
+                    s64 current = *max;
+                    for (int i = 0; i < 16 && value > current; i++) {
+                        s64 seen = __sync_val_compare_and_swap(max, current, value);
+                        if (seen == current) {
+                            break;
+                        }
+                        current = seen;
+                    }
+                """;
+    }
+
+    @BPFFunction
+    @AlwaysInline
+    public void addResumeLatency(@Unsigned long latency) {
+        String CODE = """
+                    __sync_fetch_and_add(&resumeCount, 1);
+                    __sync_fetch_and_add(&resumeLatencySum, latency);
+                    atomicMax(&resumeLatencyMax, (s64) latency);
+                """;
+    }
+
+    /** Measure the resume latency if the task (or its task group) has been resumed */
+    @BPFFunction
+    @AlwaysInline
+    public void recordResumeLatency(Ptr<TaskDefinitions.task_struct> p) {
+        int key = p.val().pid;
+        var resumedAt = pendingResumes.bpf_get(key);
+        if (resumedAt == null) {
+            key = -p.val().tgid;
+            resumedAt = pendingResumes.bpf_get(key);
+        }
+        if (resumedAt == null) {
+            return;
+        }
+        addResumeLatency(bpf_ktime_get_ns() - resumedAt.val());
+        pendingResumes.bpf_delete(key);
+    }
+
+    @Override
+    public void tick(Ptr<TaskDefinitions.task_struct> p) {
+        processResumeRequests();
+    }
+
+    @Override
+    public BPFHashMap<Integer, TaskSetting> getTaskGroupSettingsMap() {
+        return taskGroupSettings;
+    }
+
+    @Override
+    public BPFHashMap<Integer, TaskSetting> getTaskSettingsMap() {
+        return taskSettings;
+    }
+
+    @Override
+    public BPFHashMap<Integer, TaskRule> getTaskRulesMap() {
+        return taskRules;
+    }
+
+    @Override
+    public GlobalVariable<Integer> getRuleGeneration() {
+        return ruleGeneration;
+    }
+
+    @Override
+    public BPFArray<Integer> getResumeRequests() {
+        return resumeRequests;
+    }
+
+    @Override
+    public GlobalVariable<Long> getResumeHead() {
+        return resumeHead;
+    }
+
+    @Override
+    public BPFHashMap<Integer, Long> getPendingResumes() {
+        return pendingResumes;
+    }
+
+    @Override
+    public GlobalVariable<Long> getResumeCount() {
+        return resumeCount;
+    }
+
+    @Override
+    public GlobalVariable<Long> getResumeLatencySum() {
+        return resumeLatencySum;
+    }
+
+    @Override
+    public GlobalVariable<Long> getResumeLatencyMax() {
+        return resumeLatencyMax;
+    }
+}
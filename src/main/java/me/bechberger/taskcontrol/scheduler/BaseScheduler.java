@@ -1,29 +1,108 @@
 package me.bechberger.taskcontrol.scheduler;
 
+import me.bechberger.ebpf.annotations.Size;
 import me.bechberger.ebpf.annotations.Type;
 import me.bechberger.ebpf.annotations.Unsigned;
 import me.bechberger.ebpf.annotations.bpf.BPFInterface;
 import me.bechberger.ebpf.bpf.BPFProgram;
+import me.bechberger.ebpf.bpf.GlobalVariable;
 import me.bechberger.ebpf.bpf.Scheduler;
+import me.bechberger.ebpf.bpf.map.BPFArray;
 import me.bechberger.ebpf.bpf.map.BPFHashMap;
 
+import java.time.Duration;
+
 @BPFInterface
 public interface BaseScheduler extends Scheduler, AutoCloseable {
 
     /**
      *
      * @param stop stop scheduling
-     * @param lotteryPriority positive priority for the {@link LotteryScheduler}
+     * @param lotteryPriority positive priority for the {@link LotteryScheduler} and weight for the {@link StrideScheduler}
+     * @param deadline relative deadline in nanoseconds for the {@link EDFScheduler}, 0 for best effort
      */
     @Type
-    record TaskSetting(boolean stop, @Unsigned int lotteryPriority) {
+    record TaskSetting(boolean stop, @Unsigned int lotteryPriority, @Unsigned long deadline) {
         public TaskSetting {
             if (lotteryPriority <= 0) {
                 throw new IllegalArgumentException("lotteryPriority has to be positive, got " + lotteryPriority);
             }
+            if (deadline < 0) {
+                throw new IllegalArgumentException("deadline must not be negative, got " + deadline);
+            }
+        }
+
+        public TaskSetting(boolean stop, int lotteryPriority) {
+            this(stop, lotteryPriority, 0);
+        }
+
+        /** The same setting with a different stop flag */
+        public TaskSetting withStop(boolean stop) {
+            return new TaskSetting(stop, lotteryPriority, deadline);
+        }
+    }
+
+    /** Maximum number of {@link TaskRule}s, rules are stored at the indexes {@code 0..n-1} */
+    int MAX_RULES = 64;
+
+    /** Length of {@code task_struct.comm} including the terminating zero */
+    int TASK_COMM_LEN = 16;
+
+    /**
+     * Rule that applies a setting to every task with a matching comm (OS thread name),
+     * evaluated once per task in the kernel and cached
+     *
+     * @param comm comm to match
+     * @param prefix match all comms that start with {@code comm}
+     * @param tgid only match tasks of this task group, 0 for all
+     * @param setting setting to apply to matching tasks
+     */
+    @Type
+    record TaskRule(@Size(TASK_COMM_LEN) String comm, boolean prefix, int tgid, TaskSetting setting) {
+
+        /**
+         * Create a rule from a pattern like {@code ForkJoinPool*}, a trailing {@code *} matches all comms
+         * with the given prefix
+         */
+        public static TaskRule parse(String pattern, int tgid, TaskSetting setting) {
+            boolean prefix = pattern.endsWith("*");
+            String comm = prefix ? pattern.substring(0, pattern.length() - 1) : pattern;
+            if (comm.isEmpty() && !prefix) {
+                throw new IllegalArgumentException("comm pattern must not be empty");
+            }
+            if (comm.length() >= TASK_COMM_LEN) {
+                throw new IllegalArgumentException("comm pattern must be shorter than " + TASK_COMM_LEN + " chars, got " + comm);
+            }
+            return new TaskRule(comm, prefix, tgid, setting);
+        }
+
+        public String pattern() {
+            return prefix ? comm + "*" : comm;
         }
     }
 
+    /**
+     * Cached result of matching a task against all {@link TaskRule}s
+     *
+     * @param generation rule generation this result was computed for
+     * @param commLow first eight bytes of the comm, to notice renamed threads
+     * @param commHigh last eight bytes of the comm
+     * @param matched whether a rule matched
+     * @param setting setting of the matching rule
+     */
+    @Type
+    record RuleMatch(int generation, @Unsigned long commLow, @Unsigned long commHigh, boolean matched, TaskSetting setting) {
+    }
+
+    /** Size of the ring of resume requests, older requests are dropped if the scheduler falls behind */
+    int RESUME_QUEUE_SIZE = 256;
+
+    /**
+     * Time between resuming a stopped task and the task running again
+     * @param resumes number of measured resumes
+     */
+    record ResumeLatencyStats(long resumes, Duration average, Duration max) {}
+
     default void tracePrintLoop() {
         if (this instanceof BPFProgram program) {
             program.tracePrintLoop();
@@ -32,4 +111,56 @@ public interface BaseScheduler extends Scheduler, AutoCloseable {
 
     BPFHashMap<Integer, TaskSetting> getTaskSettingsMap();
     BPFHashMap<Integer, TaskSetting> getTaskGroupSettingsMap();
+
+    /** Rules by index, modify via {@link #getRuleGeneration()} */
+    BPFHashMap<Integer, TaskRule> getTaskRulesMap();
+
+    /** Increment after modifying the rules to invalidate all cached {@link RuleMatch}es */
+    GlobalVariable<Integer> getRuleGeneration();
+
+    /**
+     * Ring of resumed task ids and negative task group ids, the scheduler kicks an idle CPU
+     * for each task and for each runnable task of each task group
+     */
+    BPFArray<Integer> getResumeRequests();
+
+    /** Number of requests written to {@link #getResumeRequests()} */
+    GlobalVariable<Long> getResumeHead();
+
+    /** {@code System.nanoTime()} of the resume by task id, or negative task group id */
+    BPFHashMap<Integer, Long> getPendingResumes();
+
+    GlobalVariable<Long> getResumeCount();
+
+    /** Sum of the resume latencies in nanoseconds */
+    GlobalVariable<Long> getResumeLatencySum();
+
+    /** Maximum resume latency in nanoseconds */
+    GlobalVariable<Long> getResumeLatencyMax();
+
+    /**
+     * Let the scheduler wake an idle CPU for the resumed task or task group right away,
+     * instead of waiting for the next dispatch, and measure the time until it runs
+     * <p>
+     * The requests are processed on dispatch, tick and by a timer that runs while tasks are queued,
+     * so the latency is at most about one millisecond even if all CPUs are idle
+     * <p>
+     * Call after the setting has been updated, {@code System.nanoTime()} uses the
+     * same clock as {@code bpf_ktime_get_ns()} on Linux
+     */
+    default void kickResumed(int id, boolean group) {
+        getPendingResumes().put(group ? -id : id, System.nanoTime());
+        synchronized (getResumeRequests()) {
+            long head = getResumeHead().get();
+            getResumeRequests().set((int) (head % RESUME_QUEUE_SIZE), group ? -id : id);
+            getResumeHead().set(head + 1);
+        }
+    }
+
+    default ResumeLatencyStats getResumeLatencyStats() {
+        long count = getResumeCount().get();
+        return new ResumeLatencyStats(count,
+                Duration.ofNanos(count == 0 ? 0 : getResumeLatencySum().get() / count),
+                Duration.ofNanos(getResumeLatencyMax().get()));
+    }
 }
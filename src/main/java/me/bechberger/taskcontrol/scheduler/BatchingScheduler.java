@@ -0,0 +1,27 @@
+package me.bechberger.taskcontrol.scheduler;
+
+import me.bechberger.ebpf.bpf.GlobalVariable;
+
+/**
+ * Scheduler that moves multiple tasks from the shared DSQ to the local DSQ per dispatch call,
+ * bounded by the batch size, {@code scx_bpf_dispatch_nr_slots()} and the number of queued tasks
+ * that the idle CPUs can't take (see {@link AbstractStoppingScheduler#batchLimit})
+ * <p>
+ * A task that is stopped while it waits in a local DSQ might still start running after the stop
+ * request returned, but it is preempted as soon as it starts (see
+ * {@link AbstractStoppingScheduler#preemptIfStopped}), so it runs at most until the preemption is handled
+ */
+public interface BatchingScheduler {
+
+    /** No batching by default, as batching only pays off when the CPUs are saturated */
+    int DEFAULT_DISPATCH_BATCH_SIZE = 1;
+
+    GlobalVariable<Integer> getDispatchBatchSize();
+
+    default void setDispatchBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize has to be positive, got " + batchSize);
+        }
+        getDispatchBatchSize().set(batchSize);
+    }
+}
@@ -0,0 +1,124 @@
+package me.bechberger.taskcontrol.scheduler;
+
+import me.bechberger.ebpf.annotations.Type;
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.bpf.GlobalVariable;
+import me.bechberger.ebpf.bpf.map.BPFArray;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Scheduler that can randomly hold back runnable tasks of a task group or cgroup
+ * for a bounded time ("chaos mode"), to explore more interleavings in concurrency tests
+ * <p>
+ * All decisions are made in the kernel and reported via {@link #getChaosDecisions()}.
+ * Recorded decisions can be replayed: every CPU then follows the decisions of the same CPU
+ * in order for the tasks in scope, instead of drawing random numbers.
+ */
+public interface ChaosScheduler {
+
+    /** Probabilities are given in parts per million */
+    int PROBABILITY_SCALE = 1_000_000;
+
+    /** Upper bound for the delay, well below the 30s of the sched_ext watchdog */
+    Duration MAX_DELAY = Duration.ofSeconds(1);
+
+    int MAX_REPLAY_DECISIONS = 1 << 20;
+
+    /**
+     * Decision for an enqueued task in scope
+     * @param timestamp {@code bpf_ktime_get_ns()} when the task was enqueued
+     * @param cpu CPU that enqueued the task
+     * @param pid held back task
+     * @param delay nanoseconds the task is held back, 0 if it is not held back
+     */
+    @Type
+    record ChaosDecision(@Unsigned long timestamp, int cpu, int pid, @Unsigned long delay) {
+    }
+
+    /**
+     * Configuration of the chaos mode
+     * @param tgid only affect tasks of this task group, 0 for all
+     * @param cgroupId only affect tasks of this cgroup (v2) id, 0 for all
+     * @param probability probability that a task is held back when it is enqueued
+     * @param maxDelay maximum time a task is held back
+     * @param seed seed of the random numbers, 0 to use {@code bpf_get_prandom_u32}
+     */
+    record ChaosConfig(int tgid, long cgroupId, double probability, Duration maxDelay, long seed) {
+        public ChaosConfig {
+            if (probability < 0 || probability > 1) {
+                throw new IllegalArgumentException("probability has to be in [0, 1], got " + probability);
+            }
+            if (maxDelay.isNegative() || maxDelay.isZero() || maxDelay.compareTo(MAX_DELAY) > 0) {
+                throw new IllegalArgumentException("maxDelay has to be positive and at most " + MAX_DELAY + ", got " + maxDelay);
+            }
+        }
+    }
+
+    GlobalVariable<Integer> getChaosTgid();
+
+    GlobalVariable<Long> getChaosCgroup();
+
+    GlobalVariable<Integer> getChaosProbability();
+
+    GlobalVariable<Long> getChaosMaxDelay();
+
+    GlobalVariable<Long> getChaosSeed();
+
+    /** Number of random numbers drawn for the seed */
+    GlobalVariable<Long> getChaosCounter();
+
+    BPFRingBuffer<ChaosDecision> getChaosDecisions();
+
+    /** Replay {@link #getChaosReplayDecisions()} if not 0 */
+    GlobalVariable<Integer> getChaosReplaying();
+
+    /** Number of replayed decisions */
+    GlobalVariable<Integer> getChaosReplayed();
+
+    /** Decisions grouped by CPU, in the recorded order per CPU */
+    BPFArray<ChaosDecision> getChaosReplayDecisions();
+
+    /** Index of the next decision to replay by CPU */
+    BPFArray<Integer> getChaosReplayNext();
+
+    /** End (exclusive) of the decisions of the CPU in {@link #getChaosReplayDecisions()} */
+    BPFArray<Integer> getChaosReplayEnd();
+
+    /**
+     * Follow the recorded decisions instead of drawing random numbers when the chaos mode is enabled,
+     * falls back to random numbers when all decisions of a CPU have been replayed
+     */
+    default void startChaosReplay(List<ChaosDecision> decisions) {
+        if (decisions.size() > MAX_REPLAY_DECISIONS) {
+            throw new IllegalArgumentException("At most " + MAX_REPLAY_DECISIONS + " decisions can be replayed, got " + decisions.size());
+        }
+        getChaosReplaying().set(0);
+        PerCpuRecords.load(decisions, ChaosDecision::cpu, getChaosReplayDecisions(), getChaosReplayNext(),
+                getChaosReplayEnd(), TopologyAwareScheduler.MAX_CPUS);
+        getChaosReplayed().set(0);
+        getChaosReplaying().set(1);
+    }
+
+    default void enableChaos(ChaosConfig config) {
+        // disable first, so that the kernel never sees a half updated configuration
+        disableChaos();
+        getChaosTgid().set(config.tgid());
+        getChaosCgroup().set(config.cgroupId());
+        getChaosMaxDelay().set(config.maxDelay().toNanos());
+        getChaosSeed().set(config.seed());
+        // restart the random sequence, so that the same seed reproduces the run
+        getChaosCounter().set(0L);
+        getChaosProbability().set((int) Math.round(config.probability() * PROBABILITY_SCALE));
+    }
+
+    default void disableChaos() {
+        getChaosProbability().set(0);
+    }
+
+    default boolean isChaosEnabled() {
+        return getChaosProbability().get() > 0;
+    }
+}
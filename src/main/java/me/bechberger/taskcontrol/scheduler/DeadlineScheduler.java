@@ -0,0 +1,46 @@
+package me.bechberger.taskcontrol.scheduler;
+
+import me.bechberger.ebpf.bpf.GlobalVariable;
+
+import java.time.Duration;
+
+/**
+ * Scheduler that dispatches tasks with a {@link BaseScheduler.TaskSetting#deadline()} earliest-deadline-first
+ * and counts the jobs that finished after their deadline
+ * <p>
+ * A job starts when the task becomes runnable and ends when it blocks again
+ */
+public interface DeadlineScheduler {
+
+    /**
+     * @param hits jobs that finished before their deadline
+     * @param misses jobs that finished after their deadline
+     * @param maxLateness maximum time a job finished after its deadline
+     */
+    record DeadlineStats(long hits, long misses, Duration maxLateness) {}
+
+    GlobalVariable<Long> getDeadlineHits();
+
+    GlobalVariable<Long> getDeadlineMisses();
+
+    /** In nanoseconds */
+    GlobalVariable<Long> getMaxLateness();
+
+    /**
+     * Maximum time in nanoseconds that best effort tasks wait while deadline tasks are runnable,
+     * protects the share of the best effort tasks
+     */
+    GlobalVariable<Long> getBestEffortMaxWait();
+
+    default DeadlineStats getDeadlineStats() {
+        return new DeadlineStats(getDeadlineHits().get(), getDeadlineMisses().get(),
+                Duration.ofNanos(getMaxLateness().get()));
+    }
+
+    default void setBestEffortMaxWait(Duration maxWait) {
+        if (maxWait.isNegative() || maxWait.isZero()) {
+            throw new IllegalArgumentException("maxWait has to be positive, got " + maxWait);
+        }
+        getBestEffortMaxWait().set(maxWait.toNanos());
+    }
+}
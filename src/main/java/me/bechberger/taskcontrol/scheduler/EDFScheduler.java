@@ -0,0 +1,260 @@
+package me.bechberger.taskcontrol.scheduler;
+
+import me.bechberger.ebpf.annotations.AlwaysInline;
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFFunction;
+import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
+import me.bechberger.ebpf.annotations.bpf.Property;
+import me.bechberger.ebpf.bpf.GlobalVariable;
+import me.bechberger.ebpf.bpf.map.BPFArray;
+import me.bechberger.ebpf.bpf.map.BPFHashMap;
+import me.bechberger.ebpf.runtime.BpfDefinitions;
+import me.bechberger.ebpf.runtime.ScxDefinitions;
+import me.bechberger.ebpf.runtime.TaskDefinitions;
+import me.bechberger.ebpf.type.Ptr;
+
+import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_cpumask_test_cpu;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.*;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_dsq_id_flags.SCX_DSQ_LOCAL_ON;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_enq_flags.SCX_ENQ_PREEMPT;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.*;
+
+/**
+ * Earliest-deadline-first scheduler that allows stopping tasks
+ * <p>
+ * Tasks with a deadline (see {@link TaskSetting#deadline()}) are dispatched
+ * in the order of their absolute deadlines before all best effort tasks,
+ * which are dispatched FIFO. Best effort tasks are dispatched first if they
+ * waited longer than {@link #getBestEffortMaxWait()}.
+ * <p>
+ * Enqueuing a deadline task kicks an idle CPU or preempts a CPU that runs a best effort task,
+ * so that the deadline task doesn't wait for the end of the current slices.
+ */
+@BPF(license = "GPL")
+@Property(name = "sched_name", value = "edf_stopping_scheduler")
+public abstract class EDFScheduler extends AbstractStoppingScheduler implements DeadlineScheduler {
+
+    private static final int SHARED_DSQ_ID = 0;
+    private static final int DEADLINE_DSQ_ID = 1;
+
+    private static final int SLICE_NS = 5_000_000;
+
+    private static final int MAX_CPUS = TopologyAwareScheduler.MAX_CPUS;
+
+    /** Absolute deadline of the current job per deadline task */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFHashMap<Integer, @Unsigned Long> taskDeadlines;
+
+    final GlobalVariable<Long> deadlineHits = new GlobalVariable<>(0L);
+    final GlobalVariable<Long> deadlineMisses = new GlobalVariable<>(0L);
+    final GlobalVariable<Long> maxLateness = new GlobalVariable<>(0L);
+
+    final GlobalVariable<Long> bestEffortMaxWait = new GlobalVariable<>(20_000_000L);
+
+    /** {@code bpf_ktime_get_ns()} at which the best effort task was last enqueued */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFHashMap<Integer, @Unsigned Long> bestEffortEnqueuedAt;
+
+    /** 1 if the CPU runs a best effort task, else 0 */
+    @BPFMapDefinition(maxEntries = MAX_CPUS)
+    BPFArray<Integer> runsBestEffort;
+
+    @Override
+    public int init() {
+        int ret = initKickTimer();
+        if (ret != 0) {
+            return ret;
+        }
+        ret = scx_bpf_create_dsq(SHARED_DSQ_ID, -1);
+        if (ret != 0) {
+            return ret;
+        }
+        return scx_bpf_create_dsq(DEADLINE_DSQ_ID, -1);
+    }
+
+    @BPFFunction
+    @AlwaysInline
+    public void setRunsBestEffort(int cpu, int value) {
+        String CODE = """
+                    u32 key = cpu;
+                    s32 *slot = bpf_map_lookup_elem(&runsBestEffort, &key);
+                    if (slot) {
+                        *slot = value;
+                    }
+                """;
+    }
+
+    @Override
+    public void running(Ptr<TaskDefinitions.task_struct> p) {
+        setRunsBestEffort(scx_bpf_task_cpu(p), taskDeadlines.bpf_get(p.val().pid) == null ? 1 : 0);
+        recordResumeLatency(p);
+    }
+
+    @Override
+    public void enable(Ptr<TaskDefinitions.task_struct> p) {
+        initTaskState(p);
+    }
+
+    @Override
+    public void exitTask(Ptr<TaskDefinitions.task_struct> p, Ptr<ScxDefinitions.scx_exit_task_args> args) {
+        clearTaskState(p);
+        taskDeadlines.bpf_delete(p.val().pid);
+        bestEffortEnqueuedAt.bpf_delete(p.val().pid);
+    }
+
+    /** A new job starts when the task becomes runnable */
+    @Override
+    public void runnable(Ptr<TaskDefinitions.task_struct> p, long enq_flags) {
+        TaskSetting setting = new TaskSetting(false, 1, 0);
+        getSetting(p, Ptr.of(setting));
+        if (setting.deadline() > 0) {
+            taskDeadlines.bpf_put(p.val().pid, bpf_ktime_get_ns() + setting.deadline());
+        }
+    }
+
+    /**
+     * Kick an idle CPU that the task can run on, or else preempt a usable CPU that runs a best effort task,
+     * the kicked CPU then dispatches the earliest deadline task
+     */
+    @BPFFunction
+    @AlwaysInline
+    public void kickCpuForDeadlineTask(Ptr<TaskDefinitions.task_struct> p) {
+        String CODE = """
+                    s32 cpu = scx_bpf_pick_idle_cpu(p->cpus_ptr, 0);
+                    if (cpu >= 0) {
+                        scx_bpf_kick_cpu(cpu, SCX_KICK_IDLE);
+                        return;
+                    }
+                    u32 nr = scx_bpf_nr_cpu_ids();
+                    for (u32 i = 0; i < nr && i < MAX_CPUS; i++) {
+                        u32 other = i;
+                        s32 *bestEffort = bpf_map_lookup_elem(&runsBestEffort, &other);
+                        if (bestEffort && *bestEffort && bpf_cpumask_test_cpu(other, p->cpus_ptr)) {
+                            scx_bpf_kick_cpu(other, SCX_KICK_PREEMPT);
+                            return;
+                        }
+                    }
+                """;
+    }
+
+    @Override
+    public void enqueue(Ptr<TaskDefinitions.task_struct> p, long enq_flags) {
+        var deadline = taskDeadlines.bpf_get(p.val().pid);
+        if (deadline != null) {
+            scx_bpf_dsq_insert_vtime(p, DEADLINE_DSQ_ID, SLICE_NS, deadline.val(), enq_flags);
+            if (!shouldStop(p)) {
+                kickCpuForDeadlineTask(p);
+            }
+            return;
+        }
+        bestEffortEnqueuedAt.bpf_put(p.val().pid, bpf_ktime_get_ns());
+        var sliceLength = ((@Unsigned int) SLICE_NS) / (scx_bpf_dsq_nr_queued(SHARED_DSQ_ID) + 1);
+        scx_bpf_dsq_insert(p, SHARED_DSQ_ID, sliceLength, enq_flags);
+    }
+
+    @BPFFunction
+    @AlwaysInline
+    public void recordJobEnd(@Unsigned long lateness, boolean missed) {
+        String CODE = """
+                    if (missed) {
+                        __sync_fetch_and_add(&deadlineMisses, 1);
+                        atomicMax(&maxLateness, (s64) lateness);
+                    } else {
+                        __sync_fetch_and_add(&deadlineHits, 1);
+                    }
+                """;
+    }
+
+    /** The job ends when the task blocks */
+    @Override
+    public void stopping(Ptr<TaskDefinitions.task_struct> p, boolean runnable) {
+        setRunsBestEffort(scx_bpf_task_cpu(p), 0);
+        if (runnable) {
+            return;
+        }
+        var deadline = taskDeadlines.bpf_get(p.val().pid);
+        if (deadline == null) {
+            return;
+        }
+        @Unsigned long now = bpf_ktime_get_ns();
+        @Unsigned long absoluteDeadline = deadline.val();
+        recordJobEnd(now - absoluteDeadline, now > absoluteDeadline);
+        taskDeadlines.bpf_delete(p.val().pid);
+    }
+
+    @BPFFunction
+    @AlwaysInline
+    public boolean tryDispatching(Ptr<BpfDefinitions.bpf_iter_scx_dsq> iter, Ptr<TaskDefinitions.task_struct> p, int cpu) {
+        if (shouldStop(p)) {
+            return false;
+        }
+        // check if the CPU is usable by the task
+        if (!bpf_cpumask_test_cpu(cpu, p.val().cpus_ptr)) {
+            return false;
+        }
+        return scx_bpf_dsq_move(iter, p, SCX_DSQ_LOCAL_ON.value() | cpu, SCX_ENQ_PREEMPT.value());
+    }
+
+    /** Whether the best effort task waited longer than {@link #getBestEffortMaxWait()} since it was enqueued */
+    @BPFFunction
+    @AlwaysInline
+    public boolean waitedTooLong(Ptr<TaskDefinitions.task_struct> p, @Unsigned long now) {
+        var enqueued = bestEffortEnqueuedAt.bpf_get(p.val().pid);
+        return enqueued != null && now - enqueued.val() > bestEffortMaxWait.get();
+    }
+
+    /**
+     * Dispatch the first usable best effort task that waited too long, else the usable deadline task
+     * with the earliest deadline, or else the first usable best effort task
+     * <p>
+     * The best effort tasks are queued FIFO, so only the tasks at the head can have waited too long
+     */
+    @Override
+    public void dispatch(int cpu, Ptr<TaskDefinitions.task_struct> prev) {
+        String CODE = """
+                    s32 this_cpu = bpf_get_smp_processor_id();
+                    processResumeRequests();
+                    struct task_struct *p;
+                    u64 now = bpf_ktime_get_ns();
+                    bpf_for_each(scx_dsq, p, SHARED_DSQ_ID, 0) {
+                       if (!waitedTooLong(p, now)) {
+                           break;
+                       }
+                       if (tryDispatching(BPF_FOR_EACH_ITER, p, this_cpu)) {
+                           return 0;
+                       }
+                    }
+                    bpf_for_each(scx_dsq, p, DEADLINE_DSQ_ID, 0) {
+                       if (tryDispatching(BPF_FOR_EACH_ITER, p, this_cpu)) {
+                           return 0;
+                       }
+                    }
+                    bpf_for_each(scx_dsq, p, SHARED_DSQ_ID, 0) {
+                       if (tryDispatching(BPF_FOR_EACH_ITER, p, this_cpu)) {
+                           return 0;
+                       }
+                    }
+                """;
+    }
+
+    @Override
+    public GlobalVariable<Long> getDeadlineHits() {
+        return deadlineHits;
+    }
+
+    @Override
+    public GlobalVariable<Long> getDeadlineMisses() {
+        return deadlineMisses;
+    }
+
+    @Override
+    public GlobalVariable<Long> getMaxLateness() {
+        return maxLateness;
+    }
+
+    @Override
+    public GlobalVariable<Long> getBestEffortMaxWait() {
+        return bestEffortMaxWait;
+    }
+}
@@ -6,72 +6,345 @@ import me.bechberger.ebpf.annotations.bpf.BPF;
 import me.bechberger.ebpf.annotations.bpf.BPFFunction;
 import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
 import me.bechberger.ebpf.annotations.bpf.Property;
-import me.bechberger.ebpf.bpf.BPFProgram;
+import me.bechberger.ebpf.bpf.GlobalVariable;
+import me.bechberger.ebpf.bpf.map.BPFArray;
 import me.bechberger.ebpf.bpf.map.BPFHashMap;
-import me.bechberger.ebpf.runtime.BpfDefinitions;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer;
+import me.bechberger.ebpf.runtime.ScxDefinitions;
 import me.bechberger.ebpf.runtime.TaskDefinitions;
 import me.bechberger.ebpf.type.Ptr;
 
 import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_cpumask_test_cpu;
 import static me.bechberger.ebpf.runtime.ScxDefinitions.*;
-import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_dsq_id_flags.SCX_DSQ_LOCAL_ON;
-import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_enq_flags.SCX_ENQ_PREEMPT;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.*;
 
 /**
- * FIFO scheduler that allows stopping tasks
+ * FIFO scheduler that allows stopping tasks and randomly holding them back (see {@link ChaosScheduler}),
+ * dispatching up to {@link #getDispatchBatchSize()} tasks per dispatch call, preferring tasks
+ * that last ran in the LLC of the dispatching CPU (see {@link TopologyAwareScheduler})
  */
 @BPF(license = "GPL")
 @Property(name = "sched_name", value = "minimal_stopping_scheduler")
-public abstract class FIFOScheduler extends BPFProgram implements BaseScheduler {
+public abstract class FIFOScheduler extends AbstractStoppingScheduler implements ChaosScheduler, BatchingScheduler, TopologyAwareScheduler {
 
     private static final int SHARED_DSQ_ID = 0;
 
-    @BPFMapDefinition(maxEntries = 10000)
-    BPFHashMap<Integer, TaskSetting> taskSettings;
+    /** Time after which a waiting task is pulled by any CPU, even if the CPUs of its LLC are busy */
+    private static final int MAX_REMOTE_WAIT_NS = 5_000_000;
 
-    @BPFMapDefinition(maxEntries = 10000)
-    BPFHashMap<Integer, TaskSetting> taskGroupSettings;
+    /** Maximum number of tasks moved to the local DSQ per dispatch call */
+    final GlobalVariable<Integer> dispatchBatchSize = new GlobalVariable<>(DEFAULT_DISPATCH_BATCH_SIZE);
+
+    @BPFMapDefinition(maxEntries = MAX_CPUS)
+    BPFArray<Integer> cpuLlcs;
+
+    @BPFMapDefinition(maxEntries = MAX_CPUS)
+    BPFArray<Integer> cpuNodes;
+
+    final GlobalVariable<Integer> topologyLevels = new GlobalVariable<>(0);
+
+    /** {@code bpf_ktime_get_ns()} at which the task was last enqueued */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFHashMap<Integer, @Unsigned Long> enqueuedAt;
+
+    /** Time until which a task is held back by the chaos mode */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFHashMap<Integer, @Unsigned Long> chaosHeldUntil;
+
+    @BPFMapDefinition(maxEntries = 256 * 4096)
+    BPFRingBuffer<ChaosDecision> chaosDecisions;
+
+    final GlobalVariable<Integer> chaosTgid = new GlobalVariable<>(0);
+    final GlobalVariable<Long> chaosCgroup = new GlobalVariable<>(0L);
+    /** Chaos mode is disabled if 0 */
+    final GlobalVariable<Integer> chaosProbability = new GlobalVariable<>(0);
+    final GlobalVariable<Long> chaosMaxDelay = new GlobalVariable<>(0L);
+    final GlobalVariable<Long> chaosSeed = new GlobalVariable<>(0L);
+    final GlobalVariable<Long> chaosCounter = new GlobalVariable<>(0L);
+
+    @BPFMapDefinition(maxEntries = MAX_REPLAY_DECISIONS)
+    BPFArray<ChaosDecision> chaosReplayDecisions;
+
+    @BPFMapDefinition(maxEntries = MAX_CPUS)
+    BPFArray<Integer> chaosReplayNext;
+
+    @BPFMapDefinition(maxEntries = MAX_CPUS)
+    BPFArray<Integer> chaosReplayEnd;
+
+    final GlobalVariable<Integer> chaosReplaying = new GlobalVariable<>(0);
+    final GlobalVariable<Integer> chaosReplayed = new GlobalVariable<>(0);
 
     @Override
     public int init() {
+        int ret = initKickTimer();
+        if (ret != 0) {
+            return ret;
+        }
         return scx_bpf_create_dsq(SHARED_DSQ_ID, -1);
     }
 
     @Override
     public void enqueue(Ptr<TaskDefinitions.task_struct> p, long enq_flags) {
+        maybeHoldBack(p);
+        enqueuedAt.bpf_put(p.val().pid, bpf_ktime_get_ns());
         var sliceLength = ((@Unsigned int) 5_000_000) / scx_bpf_dsq_nr_queued(SHARED_DSQ_ID);
         scx_bpf_dsq_insert(p, SHARED_DSQ_ID, sliceLength, enq_flags);
     }
 
     @BPFFunction
     @AlwaysInline
-    public boolean shouldStop(Ptr<TaskDefinitions.task_struct> p) {
-        var taskSetting = taskSettings.bpf_get(p.val().pid);
-        var groupSetting = taskGroupSettings.bpf_get(p.val().tgid);
-        return (taskSetting != null && taskSetting.val().stop()) || (groupSetting != null && groupSetting.val().stop());
+    public boolean inChaosScope(Ptr<TaskDefinitions.task_struct> p) {
+        String CODE = """
+                    if (chaosTgid != 0 && chaosTgid != p->tgid) {
+                        return false;
+                    }
+                    return chaosCgroup == 0 || chaosCgroup == p->cgroups->dfl_cgrp->kn->id;
+                """;
+        return false;
+    }
+
+    /** Random number, reproducible for a given seed and order of decisions (splitmix64) */
+    @BPFFunction
+    @AlwaysInline
+    public @Unsigned long chaosRandom() {
+        String CODE = """
+                    if (chaosSeed == 0) {
+                        return ((u64) bpf_get_prandom_u32() << 32) | bpf_get_prandom_u32();
+                    }
+                    u64 z = chaosSeed + __sync_fetch_and_add(&chaosCounter, 1) * 0x9E3779B97F4A7C15ULL;
+                    z = (z ^ (z >> 30)) * 0xBF58476D1CE4E5B9ULL;
+                    z = (z ^ (z >> 27)) * 0x94D049BB133111EBULL;
+                    return z ^ (z >> 31);
+                """;
+        return 0;
+    }
+
+    /**
+     * Delay of the next recorded decision of the CPU, consuming it, or -1 if not replaying
+     * or all decisions of the CPU have been replayed
+     */
+    @BPFFunction
+    @AlwaysInline
+    public long nextReplayedDelay(int cpu) {
+        String CODE = """
+                    if (chaosReplaying == 0) {
+                        return -1;
+                    }
+                    s32 *next = bpf_map_lookup_elem(&chaosReplayNext, &cpu);
+                    s32 *end = bpf_map_lookup_elem(&chaosReplayEnd, &cpu);
+                    if (!next || !end || *next >= *end) {
+                        return -1;
+                    }
+                    u32 index = *next;
+                    struct ChaosDecision *decision = bpf_map_lookup_elem(&chaosReplayDecisions, &index);
+                    *next += 1;
+                    __sync_fetch_and_add(&chaosReplayed, 1);
+                    return decision ? decision->delay : 0;
+                """;
+        return 0;
     }
 
+    /**
+     * Hold back the task for a random (or replayed) time with the configured probability and record the decision,
+     * also decisions to not hold back the task are recorded, so that they can be replayed in order
+     */
     @BPFFunction
     @AlwaysInline
-    public boolean tryDispatching(Ptr<BpfDefinitions.bpf_iter_scx_dsq> iter, Ptr<TaskDefinitions.task_struct> p, int cpu) {
-        if (shouldStop(p)) {
+    public void maybeHoldBack(Ptr<TaskDefinitions.task_struct> p) {
+        @Unsigned int probability = chaosProbability.get();
+        if (probability == 0 || !inChaosScope(p)) {
+            return;
+        }
+        int cpu = bpf_get_smp_processor_id();
+        long delay = nextReplayedDelay(cpu);
+        if (delay == -1) {
+            @Unsigned long random = chaosRandom();
+            delay = (random & 0xFFFFFFFFL) % PROBABILITY_SCALE >= probability ? 0 : (random >> 32) % chaosMaxDelay.get() + 1;
+        }
+        @Unsigned long now = bpf_ktime_get_ns();
+        if (delay > 0) {
+            chaosHeldUntil.bpf_put(p.val().pid, now + delay);
+            // no dispatch might happen when the delay expires
+            requestKick(p.val().pid, now + delay);
+        }
+        var decision = chaosDecisions.reserve();
+        if (decision != null) {
+            decision.set(new ChaosDecision(now, cpu, p.val().pid, delay));
+            chaosDecisions.submit(decision);
+        }
+    }
+
+    /** Whether the task is still held back, requests a kick for the end of the delay if it is */
+    @BPFFunction
+    @AlwaysInline
+    public boolean isHeldBack(Ptr<TaskDefinitions.task_struct> p) {
+        var heldUntil = chaosHeldUntil.bpf_get(p.val().pid);
+        if (heldUntil == null) {
             return false;
         }
-        // check if the CPU is usable by the task
-        if (!bpf_cpumask_test_cpu(cpu, p.val().cpus_ptr)) {
+        if (heldUntil.val() > bpf_ktime_get_ns()) {
+            requestKick(p.val().pid, heldUntil.val());
+            return true;
+        }
+        chaosHeldUntil.bpf_delete(p.val().pid);
+        return false;
+    }
+
+    @Override
+    public void running(Ptr<TaskDefinitions.task_struct> p) {
+        preemptIfStopped(p);
+        recordResumeLatency(p);
+    }
+
+    @Override
+    public void enable(Ptr<TaskDefinitions.task_struct> p) {
+        initTaskState(p);
+    }
+
+    @Override
+    public void exitTask(Ptr<TaskDefinitions.task_struct> p, Ptr<ScxDefinitions.scx_exit_task_args> args) {
+        clearTaskState(p);
+        chaosHeldUntil.bpf_delete(p.val().pid);
+        enqueuedAt.bpf_delete(p.val().pid);
+    }
+
+    /**
+     * Distance between the CPU the task last ran on and the given CPU:
+     * 0 if they share a LLC, 1 if they are on the same node, else 2
+     * <p>
+     * A task that may no longer run on its last CPU, e.g. after its affinity changed, is local to every CPU,
+     * as waiting for the CPUs close to it could starve it
+     */
+    @BPFFunction
+    @AlwaysInline
+    public int topologyDistance(Ptr<TaskDefinitions.task_struct> p, int cpu) {
+        if (topologyLevels.get() == 0) {
+            return 0;
+        }
+        int prevCpu = scx_bpf_task_cpu(p);
+        if (prevCpu == cpu || !bpf_cpumask_test_cpu(prevCpu, p.val().cpus_ptr)) {
+            return 0;
+        }
+        var prevLlc = cpuLlcs.bpf_get(prevCpu);
+        var llc = cpuLlcs.bpf_get(cpu);
+        if (prevLlc == null || llc == null || prevLlc.val() == llc.val()) {
+            return 0;
+        }
+        var prevNode = cpuNodes.bpf_get(prevCpu);
+        var node = cpuNodes.bpf_get(cpu);
+        if (prevNode == null || node == null || prevNode.val() == node.val()) {
+            return 1;
+        }
+        return 2;
+    }
+
+    /** Whether every other CPU of the LLC of the CPU is idle */
+    @BPFFunction
+    @AlwaysInline
+    public boolean isDomainIdle(int cpu) {
+        String CODE = """
+                    s32 *llc = bpf_map_lookup_elem(&cpuLlcs, &cpu);
+                    if (!llc) {
+                        return true;
+                    }
+                    s32 domain = *llc;
+                    const struct cpumask *idle = scx_bpf_get_idle_cpumask();
+                    bool result = true;
+                    u32 nr = scx_bpf_nr_cpu_ids();
+                    for (u32 i = 0; i < nr && i < MAX_CPUS; i++) {
+                        u32 other = i;
+                        s32 *otherLlc = bpf_map_lookup_elem(&cpuLlcs, &other);
+                        if (other != cpu && otherLlc && *otherLlc == domain && !bpf_cpumask_test_cpu(other, idle)) {
+                            result = false;
+                            break;
+                        }
+                    }
+                    scx_bpf_put_idle_cpumask(idle);
+                    return result;
+                """;
+        return false;
+    }
+
+    /** Whether the task waited longer than {@link #MAX_REMOTE_WAIT_NS} since it was enqueued */
+    @BPFFunction
+    @AlwaysInline
+    public boolean waitedTooLong(Ptr<TaskDefinitions.task_struct> p) {
+        var enqueued = enqueuedAt.bpf_get(p.val().pid);
+        return enqueued != null && bpf_ktime_get_ns() - enqueued.val() > MAX_REMOTE_WAIT_NS;
+    }
+
+    @BPFFunction
+    @AlwaysInline
+    public boolean isDispatchable(Ptr<TaskDefinitions.task_struct> p, int cpu) {
+        if (shouldStop(p) || isHeldBack(p)) {
             return false;
         }
-        return scx_bpf_dsq_move(iter, p, SCX_DSQ_LOCAL_ON.value() | cpu, SCX_ENQ_PREEMPT.value());
+        // check if the CPU is usable by the task
+        return bpf_cpumask_test_cpu(cpu, p.val().cpus_ptr);
     }
 
+    /**
+     * Dispatch the usable tasks that last ran in the LLC of this CPU in FIFO order, in a single scan
+     * that also remembers the first usable task of the same node and of other nodes, and the first
+     * task of another LLC that waited longer than {@link #MAX_REMOTE_WAIT_NS}
+     * <p>
+     * Only if there is no such local task, the task that waited too long is pulled, or else, if all other
+     * CPUs of the LLC are idle, the first remembered task. Other tasks are left to the CPUs close to them.
+     */
     @Override
     public void dispatch(int cpu, Ptr<TaskDefinitions.task_struct> prev) {
         // macros like bpf_for_each are not yet supported in hello-ebpf Java
         String CODE = """
                     s32 this_cpu = bpf_get_smp_processor_id();
+                    processResumeRequests();
                     struct task_struct *p;
+                    u32 limit = batchLimit(SHARED_DSQ_ID, dispatchBatchSize);
+                    u32 slots = scx_bpf_dispatch_nr_slots();
+                    if (limit > slots) {
+                        limit = slots;
+                    }
+                    u32 dispatched = 0;
+                    s32 sameNodePid = 0;
+                    s32 otherNodePid = 0;
+                    s32 overduePid = 0;
+                    bpf_for_each(scx_dsq, p, SHARED_DSQ_ID, 0) {
+                       if (dispatched >= limit) {
+                           break;
+                       }
+                       if (!isDispatchable(p, this_cpu)) {
+                           continue;
+                       }
+                       s32 distance = topologyDistance(p, this_cpu);
+                       if (distance == 0) {
+                           // only the first task may preempt, the others queue up behind it
+                           if (scx_bpf_dsq_move(BPF_FOR_EACH_ITER, p, SCX_DSQ_LOCAL_ON | this_cpu,
+                                   dispatched == 0 ? SCX_ENQ_PREEMPT : 0)) {
+                               dispatched++;
+                           }
+                       } else {
+                           if (distance == 1 && sameNodePid == 0) {
+                               sameNodePid = p->pid;
+                           } else if (distance == 2 && otherNodePid == 0) {
+                               otherNodePid = p->pid;
+                           }
+                           if (overduePid == 0 && waitedTooLong(p)) {
+                               overduePid = p->pid;
+                           }
+                       }
+                    }
+                    if (dispatched > 0) {
+                        return 0;
+                    }
+                    s32 pullPid = overduePid;
+                    if (pullPid == 0 && isDomainIdle(this_cpu)) {
+                        pullPid = sameNodePid != 0 ? sameNodePid : otherNodePid;
+                    }
+                    if (pullPid == 0) {
+                        return 0;
+                    }
                     bpf_for_each(scx_dsq, p, SHARED_DSQ_ID, 0) {
-                       if (tryDispatching(BPF_FOR_EACH_ITER, p, this_cpu)) {
+                       if (p->pid == pullPid) {
+                           scx_bpf_dsq_move(BPF_FOR_EACH_ITER, p, SCX_DSQ_LOCAL_ON | this_cpu, SCX_ENQ_PREEMPT);
                            break;
                        }
                     }
@@ -79,12 +352,82 @@ public abstract class FIFOScheduler extends BPFProgram implements BaseScheduler
     }
 
     @Override
-    public BPFHashMap<Integer, TaskSetting> getTaskGroupSettingsMap() {
-        return taskGroupSettings;
+    public GlobalVariable<Integer> getDispatchBatchSize() {
+        return dispatchBatchSize;
+    }
+
+    @Override
+    public BPFArray<Integer> getCpuLlcs() {
+        return cpuLlcs;
+    }
+
+    @Override
+    public BPFArray<Integer> getCpuNodes() {
+        return cpuNodes;
+    }
+
+    @Override
+    public GlobalVariable<Integer> getTopologyLevels() {
+        return topologyLevels;
+    }
+
+    @Override
+    public GlobalVariable<Integer> getChaosTgid() {
+        return chaosTgid;
+    }
+
+    @Override
+    public GlobalVariable<Long> getChaosCgroup() {
+        return chaosCgroup;
+    }
+
+    @Override
+    public GlobalVariable<Integer> getChaosProbability() {
+        return chaosProbability;
+    }
+
+    @Override
+    public GlobalVariable<Long> getChaosMaxDelay() {
+        return chaosMaxDelay;
+    }
+
+    @Override
+    public GlobalVariable<Long> getChaosSeed() {
+        return chaosSeed;
+    }
+
+    @Override
+    public GlobalVariable<Long> getChaosCounter() {
+        return chaosCounter;
+    }
+
+    @Override
+    public BPFRingBuffer<ChaosDecision> getChaosDecisions() {
+        return chaosDecisions;
+    }
+
+    @Override
+    public GlobalVariable<Integer> getChaosReplaying() {
+        return chaosReplaying;
+    }
+
+    @Override
+    public GlobalVariable<Integer> getChaosReplayed() {
+        return chaosReplayed;
+    }
+
+    @Override
+    public BPFArray<ChaosDecision> getChaosReplayDecisions() {
+        return chaosReplayDecisions;
+    }
+
+    @Override
+    public BPFArray<Integer> getChaosReplayNext() {
+        return chaosReplayNext;
     }
 
     @Override
-    public BPFHashMap<Integer, TaskSetting> getTaskSettingsMap() {
-        return taskSettings;
+    public BPFArray<Integer> getChaosReplayEnd() {
+        return chaosReplayEnd;
     }
 }
\ No newline at end of file
@@ -6,10 +6,12 @@ import me.bechberger.ebpf.annotations.bpf.BPF;
 import me.bechberger.ebpf.annotations.bpf.BPFFunction;
 import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
 import me.bechberger.ebpf.annotations.bpf.Property;
-import me.bechberger.ebpf.bpf.BPFProgram;
 import me.bechberger.ebpf.bpf.GlobalVariable;
+import me.bechberger.ebpf.bpf.map.BPFArray;
 import me.bechberger.ebpf.bpf.map.BPFHashMap;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer;
 import me.bechberger.ebpf.runtime.BpfDefinitions;
+import me.bechberger.ebpf.runtime.ScxDefinitions;
 import me.bechberger.ebpf.runtime.TaskDefinitions;
 import me.bechberger.ebpf.type.Ptr;
 
@@ -17,24 +19,49 @@ import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_cpumask_test_cpu;
 import static me.bechberger.ebpf.runtime.ScxDefinitions.*;
 import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_dsq_id_flags.SCX_DSQ_LOCAL_ON;
 import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_enq_flags.SCX_ENQ_PREEMPT;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.*;
 
 /**
- * Lottery scheduler that allows stopping tasks and assigning priorities (1 for lowest)
+ * Lottery scheduler that allows stopping tasks and assigning priorities (1 for lowest),
+ * its decisions can be recorded and replayed (see {@link ReplayScheduler})
  */
 @BPF(license = "GPL")
 @Property(name = "sched_name", value = "lottery_stopping_scheduler")
-public abstract class LotteryScheduler extends BPFProgram implements BaseScheduler {
+public abstract class LotteryScheduler extends AbstractStoppingScheduler implements ReplayScheduler {
 
     private static final int SHARED_DSQ_ID = 0;
 
-    @BPFMapDefinition(maxEntries = 10000)
-    BPFHashMap<Integer, TaskSetting> taskSettings;
+    @BPFMapDefinition(maxEntries = 256 * 4096)
+    BPFRingBuffer<DispatchRecord> dispatchRecords;
+
+    @BPFMapDefinition(maxEntries = MAX_REPLAY_RECORDS)
+    BPFArray<DispatchRecord> replayRecords;
+
+    final GlobalVariable<Integer> dispatchLogMode = new GlobalVariable<>(0);
+    final GlobalVariable<Integer> replayLength = new GlobalVariable<>(0);
+    final GlobalVariable<Integer> replayed = new GlobalVariable<>(0);
+    final GlobalVariable<Integer> replayDivergences = new GlobalVariable<>(0);
 
+    /** Number of tasks of the task group seen so far, used as the next thread index */
     @BPFMapDefinition(maxEntries = 10000)
-    BPFHashMap<Integer, TaskSetting> taskGroupSettings;
+    BPFHashMap<Integer, Integer> threadCounters;
+
+    /** Index of the task within its task group, see {@link DispatchRecord#threadIndex()} */
+    @BPFMapDefinition(maxEntries = 100000)
+    BPFHashMap<Integer, Integer> threadIndices;
+
+    @BPFMapDefinition(maxEntries = MAX_CPUS)
+    BPFArray<Integer> replayNext;
+
+    @BPFMapDefinition(maxEntries = MAX_CPUS)
+    BPFArray<Integer> replayEnd;
 
     @Override
     public int init() {
+        int ret = initKickTimer();
+        if (ret != 0) {
+            return ret;
+        }
         return scx_bpf_create_dsq(SHARED_DSQ_ID, -1);
     }
 
@@ -44,26 +71,55 @@ public abstract class LotteryScheduler extends BPFProgram implements BaseSchedul
         scx_bpf_dsq_insert(p, SHARED_DSQ_ID, sliceLength, enq_flags);
     }
 
+    @Override
+    public void running(Ptr<TaskDefinitions.task_struct> p) {
+        recordResumeLatency(p);
+    }
+
+    /** Give the task the next index of its task group */
     @BPFFunction
     @AlwaysInline
-    public void getSetting(Ptr<TaskDefinitions.task_struct> p, Ptr<TaskSetting> out) {
-        var taskSetting = taskSettings.bpf_get(p.val().pid);
-        if (taskSetting != null) {
-            out.set(taskSetting.val());
-            return;
-        }
-        var groupSetting = taskGroupSettings.bpf_get(p.val().tgid);
-        if (groupSetting != null) {
-            out.set(groupSetting.val());
-            return;
+    public void assignThreadIndex(Ptr<TaskDefinitions.task_struct> p) {
+        String CODE = """
+                    s32 tgid = p->tgid;
+                    s32 pid = p->pid;
+                    s32 zero = 0;
+                    bpf_map_update_elem(&threadCounters, &tgid, &zero, BPF_NOEXIST);
+                    s32 *counter = bpf_map_lookup_elem(&threadCounters, &tgid);
+                    if (!counter) {
+                        return;
+                    }
+                    s32 index = __sync_fetch_and_add(counter, 1);
+                    bpf_map_update_elem(&threadIndices, &pid, &index, BPF_ANY);
+                """;
+    }
+
+    @BPFFunction
+    @AlwaysInline
+    public int threadIndex(Ptr<TaskDefinitions.task_struct> p) {
+        var index = threadIndices.bpf_get(p.val().pid);
+        return index == null ? -1 : index.val();
+    }
+
+    @Override
+    public void enable(Ptr<TaskDefinitions.task_struct> p) {
+        initTaskState(p);
+        assignThreadIndex(p);
+    }
+
+    @Override
+    public void exitTask(Ptr<TaskDefinitions.task_struct> p, Ptr<ScxDefinitions.scx_exit_task_args> args) {
+        clearTaskState(p);
+        threadIndices.bpf_delete(p.val().pid);
+        if (p.val().pid == p.val().tgid) {
+            threadCounters.bpf_delete(p.val().tgid);
         }
-        out.set(new TaskSetting(false, 1));
     }
 
     @BPFFunction
     @AlwaysInline
     public int getPriorityIfNotStopped(Ptr<TaskDefinitions.task_struct> p) {
-        TaskSetting setting = new TaskSetting(false, 1);
+        TaskSetting setting = new TaskSetting(false, 1, 0);
         getSetting(p, Ptr.of(setting));
         if (setting.stop()) {
             return 0;
@@ -81,6 +137,83 @@ public abstract class LotteryScheduler extends BPFProgram implements BaseSchedul
         return scx_bpf_dsq_move(iter, p, SCX_DSQ_LOCAL_ON.value() | cpu, SCX_ENQ_PREEMPT.value());
     }
 
+    /** Index of the next record of the CPU to replay, or -1 if there is none */
+    @BPFFunction
+    @AlwaysInline
+    public int peekReplayIndex(int cpu) {
+        if ((dispatchLogMode.get() & DISPATCH_LOG_REPLAY) == 0) {
+            return -1;
+        }
+        var next = replayNext.bpf_get(cpu);
+        var end = replayEnd.bpf_get(cpu);
+        if (next == null || end == null || next.val() >= end.val()) {
+            return -1;
+        }
+        return next.val();
+    }
+
+    /**
+     * Random number for the lottery, the recorded one of the CPU when replaying, which is then copied
+     * to {@code replay}, the record is only consumed by {@link #consumeReplayRecord(int, boolean)}
+     */
+    @BPFFunction
+    @AlwaysInline
+    public @Unsigned int drawLottery(int cpu, Ptr<DispatchRecord> replay) {
+        int index = peekReplayIndex(cpu);
+        if (index >= 0) {
+            var record = replayRecords.bpf_get(index);
+            if (record != null && record.val().cpu() == cpu) {
+                replay.set(record.val());
+                return record.val().draw();
+            }
+        }
+        return bpf_get_prandom_u32();
+    }
+
+    /** Whether the task has the comm and thread index of the recorded task */
+    @BPFFunction
+    @AlwaysInline
+    public boolean isRecordedTask(Ptr<TaskDefinitions.task_struct> p, Ptr<DispatchRecord> record) {
+        return threadIndex(p) == record.val().threadIndex() && commPart(p, 0) == record.val().commStart()
+                && commPart(p, 1) == record.val().commEnd();
+    }
+
+    /** Advance to the next record of the CPU after a successful dispatch, only the CPU itself modifies its index */
+    @BPFFunction
+    @AlwaysInline
+    public void consumeReplayRecord(int cpu, boolean diverged) {
+        String CODE = """
+                    if (peekReplayIndex(cpu) < 0) {
+                        return;
+                    }
+                    s32 *next = bpf_map_lookup_elem(&replayNext, &cpu);
+                    if (next) {
+                        *next += 1;
+                        __sync_fetch_and_add(&replayed, 1);
+                        if (diverged) {
+                            __sync_fetch_and_add(&replayDivergences, 1);
+                        }
+                    }
+                """;
+    }
+
+    /** Called after every dispatch that moved a task, consumes the replayed record and records the decision */
+    @BPFFunction
+    @AlwaysInline
+    public void recordDispatch(int cpu, Ptr<TaskDefinitions.task_struct> p, int candidates, @Unsigned int draw,
+                               boolean diverged) {
+        consumeReplayRecord(cpu, diverged);
+        if ((dispatchLogMode.get() & DISPATCH_LOG_RECORD) == 0) {
+            return;
+        }
+        var record = dispatchRecords.reserve();
+        if (record != null) {
+            record.set(new DispatchRecord(bpf_ktime_get_ns(), cpu, p.val().pid, candidates, draw,
+                    threadIndex(p), commPart(p, 0), commPart(p, 1)));
+            dispatchRecords.submit(record);
+        }
+    }
+
     /**
      * Dispatch tasks
      * <p/>
@@ -91,22 +224,49 @@ public abstract class LotteryScheduler extends BPFProgram implements BaseSchedul
      * iterate over all tasks in the shared DSQ and
      * subtract the priority of each task from the random number
      * if the random number is less than or equal to 0, dispatch the task
+     * <p/>
+     * When replaying, the next recorded task of this CPU is dispatched if it is runnable,
+     * else the recorded random number is used and the record counts as a divergence,
+     * like a record with a different number of candidates
      */
     @Override
     public void dispatch(int cpu, Ptr<TaskDefinitions.task_struct> prev) {
         // macros like bpf_for_each are not yet supported in hello-ebpf Java
         String CODE = """
                     s32 this_cpu = bpf_get_smp_processor_id();
+                    processResumeRequests();
                     struct task_struct *p;
                     int sum = 0;
+                    int candidates = 0;
                     bpf_for_each(scx_dsq, p, SHARED_DSQ_ID, 0) {
-                       sum += getPriorityIfNotStopped(p);
+                       int prio = getPriorityIfNotStopped(p);
+                       sum += prio;
+                       if (prio > 0) {
+                           candidates++;
+                       }
+                    }
+                    if (sum == 0) {
+                        return 0;
                     }
-                    int random = bpf_get_prandom_u32() % sum;
+                    struct DispatchRecord replay = {};
+                    u32 draw = drawLottery(this_cpu, &replay);
+                    bool diverged = false;
+                    if (replay.timestamp != 0) {
+                        diverged = replay.candidates != candidates;
+                        bpf_for_each(scx_dsq, p, SHARED_DSQ_ID, 0) {
+                            if (isRecordedTask(p, &replay) && getPriorityIfNotStopped(p) > 0 && tryDispatching(BPF_FOR_EACH_ITER, p, this_cpu)) {
+                                recordDispatch(this_cpu, p, candidates, draw, diverged);
+                                return 0;
+                            }
+                        }
+                        diverged = true;
+                    }
+                    int random = draw % sum;
                     bpf_for_each(scx_dsq, p, SHARED_DSQ_ID, 0) {
                         int prio = getPriorityIfNotStopped(p);
                         random -= prio;
                         if (random <= 0 && prio > 0 && tryDispatching(BPF_FOR_EACH_ITER, p, this_cpu)) {
+                            recordDispatch(this_cpu, p, candidates, draw, diverged);
                             return 0 ;
                         }
                     }
@@ -114,12 +274,42 @@ public abstract class LotteryScheduler extends BPFProgram implements BaseSchedul
     }
 
     @Override
-    public BPFHashMap<Integer, TaskSetting> getTaskGroupSettingsMap() {
-        return taskGroupSettings;
+    public GlobalVariable<Integer> getDispatchLogMode() {
+        return dispatchLogMode;
+    }
+
+    @Override
+    public GlobalVariable<Integer> getReplayLength() {
+        return replayLength;
+    }
+
+    @Override
+    public GlobalVariable<Integer> getReplayed() {
+        return replayed;
+    }
+
+    @Override
+    public GlobalVariable<Integer> getReplayDivergences() {
+        return replayDivergences;
+    }
+
+    @Override
+    public BPFArray<Integer> getReplayNext() {
+        return replayNext;
+    }
+
+    @Override
+    public BPFArray<Integer> getReplayEnd() {
+        return replayEnd;
+    }
+
+    @Override
+    public BPFArray<DispatchRecord> getReplayRecords() {
+        return replayRecords;
     }
 
     @Override
-    public BPFHashMap<Integer, TaskSetting> getTaskSettingsMap() {
-        return taskSettings;
+    public BPFRingBuffer<DispatchRecord> getDispatchRecords() {
+        return dispatchRecords;
     }
 }
\ No newline at end of file
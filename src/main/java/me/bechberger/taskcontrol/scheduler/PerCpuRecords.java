@@ -0,0 +1,44 @@
+package me.bechberger.taskcontrol.scheduler;
+
+import me.bechberger.ebpf.bpf.map.BPFArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * Stores records grouped by CPU in a BPF array, so that every CPU can replay its own records in order
+ * <p>
+ * The records of a CPU are at the indexes {@code next[cpu]..end[cpu]-1}
+ */
+final class PerCpuRecords {
+
+    private PerCpuRecords() {
+    }
+
+    static <T> void load(List<T> records, ToIntFunction<T> cpuOf, BPFArray<T> array,
+                         BPFArray<Integer> next, BPFArray<Integer> end, int maxCpus) {
+        Map<Integer, List<T>> recordsByCpu = new TreeMap<>();
+        for (T record : records) {
+            int cpu = cpuOf.applyAsInt(record);
+            if (cpu < 0 || cpu >= maxCpus) {
+                throw new IllegalArgumentException("Record with invalid CPU " + cpu);
+            }
+            recordsByCpu.computeIfAbsent(cpu, c -> new ArrayList<>()).add(record);
+        }
+        for (int cpu = 0; cpu < maxCpus; cpu++) {
+            next.set(cpu, 0);
+            end.set(cpu, 0);
+        }
+        int index = 0;
+        for (var entry : recordsByCpu.entrySet()) {
+            next.set(entry.getKey(), index);
+            for (T record : entry.getValue()) {
+                array.set(index++, record);
+            }
+            end.set(entry.getKey(), index);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package me.bechberger.taskcontrol.scheduler;
+
+import me.bechberger.ebpf.annotations.Type;
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.bpf.GlobalVariable;
+import me.bechberger.ebpf.bpf.map.BPFArray;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer;
+
+import java.util.List;
+
+/**
+ * Scheduler that can record its dispatch decisions and replay them later,
+ * to reproduce a schedule that triggered a bug
+ * <p>
+ * Replaying prefers the recorded task if it is runnable and otherwise uses the recorded random draw,
+ * which results in the same choice for the same set of candidates and priorities. Every CPU replays
+ * the records of the same CPU in order, a record is only consumed by a dispatch that moved a task.
+ * <p>
+ * Tasks are identified by their comm and their thread index, i.e. the order in which the tasks
+ * of their task group were first seen by the scheduler, as the pids differ between runs.
+ * Records whose task wasn't runnable or whose number of candidates differs are counted as divergences.
+ */
+public interface ReplayScheduler {
+
+    /** Flag for {@link #getDispatchLogMode()}: report every dispatch via {@link #getDispatchRecords()} */
+    int DISPATCH_LOG_RECORD = 1;
+    /** Flag for {@link #getDispatchLogMode()}: follow the records in {@link #getReplayRecords()} */
+    int DISPATCH_LOG_REPLAY = 2;
+
+    int MAX_REPLAY_RECORDS = 1 << 20;
+
+    int MAX_CPUS = TopologyAwareScheduler.MAX_CPUS;
+
+    /**
+     * A single dispatch decision
+     * @param timestamp {@code bpf_ktime_get_ns()} of the decision
+     * @param cpu dispatching CPU
+     * @param pid chosen task
+     * @param candidates number of runnable, not stopped tasks
+     * @param draw random number used to choose the task
+     * @param threadIndex index of the chosen task within its task group, in the order the scheduler saw them
+     * @param commStart first eight bytes of the comm of the chosen task
+     * @param commEnd last eight bytes of the comm of the chosen task
+     */
+    @Type
+    record DispatchRecord(@Unsigned long timestamp, int cpu, int pid, int candidates, @Unsigned int draw,
+                          int threadIndex, @Unsigned long commStart, @Unsigned long commEnd) {
+    }
+
+    GlobalVariable<Integer> getDispatchLogMode();
+
+    /** Number of valid entries in {@link #getReplayRecords()} */
+    GlobalVariable<Integer> getReplayLength();
+
+    /** Number of replayed records */
+    GlobalVariable<Integer> getReplayed();
+
+    /** Number of replayed records whose task wasn't runnable or whose number of candidates differed */
+    GlobalVariable<Integer> getReplayDivergences();
+
+    /** Records grouped by CPU, in the recorded order per CPU */
+    BPFArray<DispatchRecord> getReplayRecords();
+
+    /** Index of the next record to replay by CPU */
+    BPFArray<Integer> getReplayNext();
+
+    /** End (exclusive) of the records of the CPU in {@link #getReplayRecords()} */
+    BPFArray<Integer> getReplayEnd();
+
+    BPFRingBuffer<DispatchRecord> getDispatchRecords();
+
+    default void startRecording() {
+        getDispatchLogMode().set(getDispatchLogMode().get() | DISPATCH_LOG_RECORD);
+    }
+
+    /** Replay the records, falls back to random draws when all records have been replayed */
+    default void startReplay(List<DispatchRecord> records) {
+        if (records.size() > MAX_REPLAY_RECORDS) {
+            throw new IllegalArgumentException("At most " + MAX_REPLAY_RECORDS + " records can be replayed, got " + records.size());
+        }
+        getDispatchLogMode().set(getDispatchLogMode().get() & ~DISPATCH_LOG_REPLAY);
+        PerCpuRecords.load(records, DispatchRecord::cpu, getReplayRecords(), getReplayNext(), getReplayEnd(), MAX_CPUS);
+        getReplayed().set(0);
+        getReplayDivergences().set(0);
+        getReplayLength().set(records.size());
+        getDispatchLogMode().set(getDispatchLogMode().get() | DISPATCH_LOG_REPLAY);
+    }
+
+    default void stopDispatchLog() {
+        getDispatchLogMode().set(0);
+    }
+}
@@ -0,0 +1,158 @@
+package me.bechberger.taskcontrol.scheduler;
+
+import me.bechberger.ebpf.annotations.AlwaysInline;
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFFunction;
+import me.bechberger.ebpf.annotations.bpf.Property;
+import me.bechberger.ebpf.bpf.GlobalVariable;
+import me.bechberger.ebpf.runtime.BpfDefinitions;
+import me.bechberger.ebpf.runtime.ScxDefinitions;
+import me.bechberger.ebpf.runtime.TaskDefinitions;
+import me.bechberger.ebpf.type.Ptr;
+
+import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_cpumask_test_cpu;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.*;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_dsq_id_flags.SCX_DSQ_LOCAL_ON;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.*;
+
+/**
+ * Stride scheduler that allows stopping tasks and assigning weights via the lottery priority (1 for lowest)
+ * <p>
+ * Every task accumulates virtual time inversely proportional to its weight while running,
+ * the runnable task with the lowest virtual time is dispatched first. This gives a deterministic
+ * proportional share, unlike the {@link LotteryScheduler} which is only fair in expectation.
+ */
+@BPF(license = "GPL")
+@Property(name = "sched_name", value = "stride_stopping_scheduler")
+public abstract class StrideScheduler extends AbstractStoppingScheduler implements BatchingScheduler {
+
+    private static final int SHARED_DSQ_ID = 0;
+
+    private static final int SLICE_NS = 5_000_000;
+
+    /** Maximum number of tasks moved to the local DSQ per dispatch call */
+    final GlobalVariable<Integer> dispatchBatchSize = new GlobalVariable<>(DEFAULT_DISPATCH_BATCH_SIZE);
+
+    /** Virtual time of the last task that started running */
+    final GlobalVariable<@Unsigned Long> vtimeNow = new GlobalVariable<>(0L);
+
+    @Override
+    public int init() {
+        int ret = initKickTimer();
+        if (ret != 0) {
+            return ret;
+        }
+        return scx_bpf_create_dsq(SHARED_DSQ_ID, -1);
+    }
+
+    /**
+     * Insert the task ordered by its virtual time, but limit the budget that
+     * idle tasks accumulated to one slice
+     */
+    @Override
+    public void enqueue(Ptr<TaskDefinitions.task_struct> p, long enq_flags) {
+        String CODE = """
+                    u64 vtime = p->scx.dsq_vtime;
+                    if ((s64) (vtime - (vtimeNow - SLICE_NS)) < 0) {
+                        vtime = vtimeNow - SLICE_NS;
+                    }
+                    scx_bpf_dsq_insert_vtime(p, SHARED_DSQ_ID, SLICE_NS, vtime, enq_flags);
+                """;
+    }
+
+    @Override
+    public void enable(Ptr<TaskDefinitions.task_struct> p) {
+        initTaskState(p);
+        initVtime(p);
+    }
+
+    /** New tasks start at the current virtual time */
+    @BPFFunction
+    @AlwaysInline
+    public void initVtime(Ptr<TaskDefinitions.task_struct> p) {
+        String CODE = """
+                    p->scx.dsq_vtime = vtimeNow;
+                """;
+    }
+
+    @Override
+    public void exitTask(Ptr<TaskDefinitions.task_struct> p, Ptr<ScxDefinitions.scx_exit_task_args> args) {
+        clearTaskState(p);
+    }
+
+    @BPFFunction
+    @AlwaysInline
+    public int getWeight(Ptr<TaskDefinitions.task_struct> p) {
+        TaskSetting setting = new TaskSetting(false, 1, 0);
+        getSetting(p, Ptr.of(setting));
+        return setting.lotteryPriority();
+    }
+
+    @Override
+    public void running(Ptr<TaskDefinitions.task_struct> p) {
+        String CODE = """
+                    preemptIfStopped(p);
+                    recordResumeLatency(p);
+                    if ((s64) (vtimeNow - p->scx.dsq_vtime) < 0) {
+                        vtimeNow = p->scx.dsq_vtime;
+                    }
+                """;
+    }
+
+    /** Charge the used part of the slice, scaled by the inverse of the weight */
+    @Override
+    public void stopping(Ptr<TaskDefinitions.task_struct> p, boolean runnable) {
+        String CODE = """
+                    p->scx.dsq_vtime += (SLICE_NS - p->scx.slice) / getWeight(p);
+                """;
+    }
+
+    @BPFFunction
+    @AlwaysInline
+    public boolean tryDispatching(Ptr<BpfDefinitions.bpf_iter_scx_dsq> iter, Ptr<TaskDefinitions.task_struct> p, int cpu, long enqFlags) {
+        if (shouldStop(p)) {
+            return false;
+        }
+        // check if the CPU is usable by the task
+        if (!bpf_cpumask_test_cpu(cpu, p.val().cpus_ptr)) {
+            return false;
+        }
+        return scx_bpf_dsq_move(iter, p, SCX_DSQ_LOCAL_ON.value() | cpu, enqFlags);
+    }
+
+    /**
+     * Dispatch the usable tasks with the lowest virtual times, the shared DSQ is iterated in vtime order
+     * <p>
+     * The topology is ignored, as preferring close tasks would break the vtime order and thereby the shares
+     */
+    @Override
+    public void dispatch(int cpu, Ptr<TaskDefinitions.task_struct> prev) {
+        String CODE = """
+                    s32 this_cpu = bpf_get_smp_processor_id();
+                    processResumeRequests();
+                    struct task_struct *p;
+                    u32 limit = batchLimit(SHARED_DSQ_ID, dispatchBatchSize);
+                    u32 slots = scx_bpf_dispatch_nr_slots();
+                    if (limit > slots) {
+                        limit = slots;
+                    }
+                    u32 dispatched = 0;
+                    bpf_for_each(scx_dsq, p, SHARED_DSQ_ID, 0) {
+                       if (dispatched >= limit) {
+                           break;
+                       }
+                       // only the first task may preempt, the others queue up behind it
+                       if (tryDispatching(BPF_FOR_EACH_ITER, p, this_cpu, dispatched == 0 ? SCX_ENQ_PREEMPT : 0)) {
+                           dispatched++;
+                       }
+                    }
+                """;
+    }
+
+    @Override
+    public GlobalVariable<Integer> getDispatchBatchSize() {
+        return dispatchBatchSize;
+    }
+
+}
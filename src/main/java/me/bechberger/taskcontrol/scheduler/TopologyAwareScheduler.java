@@ -0,0 +1,39 @@
+package me.bechberger.taskcontrol.scheduler;
+
+import me.bechberger.ebpf.bpf.GlobalVariable;
+import me.bechberger.ebpf.bpf.map.BPFArray;
+import me.bechberger.taskcontrol.util.CpuTopology;
+
+/**
+ * Scheduler that prefers dispatching tasks to CPUs that share a LLC (or at least a NUMA node)
+ * with the CPU the task last ran on, and only pulls tasks from other domains if there is
+ * no such task and all other CPUs of its LLC are idle, or if the task waited too long
+ */
+public interface TopologyAwareScheduler {
+
+    int MAX_CPUS = 1024;
+
+    /** LLC id by CPU */
+    BPFArray<Integer> getCpuLlcs();
+
+    /** NUMA node by CPU */
+    BPFArray<Integer> getCpuNodes();
+
+    /** See {@link CpuTopology#levels()}, 0 disables the topology awareness */
+    GlobalVariable<Integer> getTopologyLevels();
+
+    default void setTopology(CpuTopology topology) {
+        getTopologyLevels().set(0);
+        topology.llcs().forEach((cpu, llc) -> {
+            if (cpu < MAX_CPUS) {
+                getCpuLlcs().set(cpu, llc);
+            }
+        });
+        topology.nodes().forEach((cpu, node) -> {
+            if (cpu < MAX_CPUS) {
+                getCpuNodes().set(cpu, node);
+            }
+        });
+        getTopologyLevels().set(topology.levels());
+    }
+}
@@ -0,0 +1,162 @@
+package me.bechberger.taskcontrol.util;
+
+import me.bechberger.taskcontrol.scheduler.ChaosScheduler.ChaosDecision;
+import me.bechberger.taskcontrol.scheduler.ReplayScheduler.DispatchRecord;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Buffered binary log of fixed size records
+ * <p>
+ * Format (little endian): magic (8 bytes), the header values (8 bytes each), then the records
+ */
+public class BinaryLog<T> implements AutoCloseable {
+
+    /**
+     * @param magic eight ASCII chars identifying the format
+     * @param headerValues number of 8 byte values after the magic
+     * @param recordSize size of an encoded record in bytes
+     */
+    public record Format<T>(String magic, int headerValues, int recordSize,
+                            BiConsumer<ByteBuffer, T> encoder, Function<ByteBuffer, T> decoder) {
+        public Format {
+            if (magic.length() != 8) {
+                throw new IllegalArgumentException("magic has to be 8 chars, got " + magic);
+            }
+        }
+    }
+
+    /**
+     * Per record: timestamp (8), cpu (4), pid (4), candidates (4), draw (4), thread index (4)
+     * and comm (16), no header
+     */
+    public static final Format<DispatchRecord> DISPATCH_RECORDS = new Format<>("TCDISP02", 0, 44,
+            (buffer, record) -> buffer.putLong(record.timestamp())
+                    .putInt(record.cpu())
+                    .putInt(record.pid())
+                    .putInt(record.candidates())
+                    .putInt(record.draw())
+                    .putInt(record.threadIndex())
+                    .putLong(record.commStart())
+                    .putLong(record.commEnd()),
+            buffer -> new DispatchRecord(buffer.getLong(), buffer.getInt(), buffer.getInt(),
+                    buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getLong(), buffer.getLong()));
+
+    /** Per decision: timestamp (8), cpu (4), pid (4) and delay (8), the header is the seed */
+    public static final Format<ChaosDecision> CHAOS_DECISIONS = new Format<>("TCCHAOS1", 1, 24,
+            (buffer, decision) -> buffer.putLong(decision.timestamp())
+                    .putInt(decision.cpu())
+                    .putInt(decision.pid())
+                    .putLong(decision.delay()),
+            buffer -> new ChaosDecision(buffer.getLong(), buffer.getInt(), buffer.getInt(), buffer.getLong()));
+
+    /** Header values and records of a log file */
+    public record Contents<T>(long[] header, List<T> records) {}
+
+    private final Format<T> format;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private long written = 0;
+    private boolean closed = false;
+
+    public BinaryLog(Path file, Format<T> format, long... header) {
+        if (header.length != format.headerValues()) {
+            throw new IllegalArgumentException("Expected " + format.headerValues() + " header values, got " + header.length);
+        }
+        this.format = format;
+        this.buffer = ByteBuffer.allocateDirect(format.recordSize() * 16384).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.put(format.magic().getBytes(StandardCharsets.US_ASCII));
+        for (long value : header) {
+            buffer.putLong(value);
+        }
+    }
+
+    /** Ignored after {@link #close()}, as records might still arrive while closing */
+    public synchronized void write(T record) {
+        if (closed) {
+            return;
+        }
+        if (buffer.remaining() < format.recordSize()) {
+            flush();
+        }
+        format.encoder().accept(buffer, record);
+        written++;
+    }
+
+    public synchronized long getWritten() {
+        return written;
+    }
+
+    public synchronized void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.clear();
+    }
+
+    /** Flush and close the file, can be called multiple times */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Read the header and all records of a log file, by memory-mapping it */
+    public static <T> Contents<T> read(Path file, Format<T> format) {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            byte[] expectedMagic = format.magic().getBytes(StandardCharsets.US_ASCII);
+            byte[] magic = new byte[expectedMagic.length];
+            if (mapped.remaining() >= magic.length + format.headerValues() * Long.BYTES) {
+                mapped.get(magic);
+            }
+            if (!Arrays.equals(magic, expectedMagic)) {
+                throw new IllegalArgumentException("Not a " + format.magic() + " log: " + file);
+            }
+            long[] header = new long[format.headerValues()];
+            for (int i = 0; i < header.length; i++) {
+                header[i] = mapped.getLong();
+            }
+            List<T> records = new ArrayList<>(mapped.remaining() / format.recordSize());
+            while (mapped.remaining() >= format.recordSize()) {
+                records.add(format.decoder().apply(mapped));
+            }
+            return new Contents<>(header, records);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
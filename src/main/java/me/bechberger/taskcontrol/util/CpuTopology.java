@@ -0,0 +1,101 @@
+package me.bechberger.taskcontrol.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Last level cache (LLC) and NUMA node of every CPU, read from sysfs
+ * @param llcs LLC id by CPU
+ * @param nodes NUMA node by CPU
+ */
+public record CpuTopology(Map<Integer, Integer> llcs, Map<Integer, Integer> nodes) {
+
+    private static final Path CPU_DIR = Path.of("/sys/devices/system/cpu");
+
+    public static CpuTopology read() {
+        return read(CPU_DIR);
+    }
+
+    static CpuTopology read(Path cpuDir) {
+        Map<Integer, Integer> llcs = new HashMap<>();
+        Map<Integer, Integer> nodes = new HashMap<>();
+        try (Stream<Path> cpus = Files.list(cpuDir)) {
+            for (Path cpuPath : cpus.filter(path -> path.getFileName().toString().matches("cpu\\d+")).toList()) {
+                int cpu = Integer.parseInt(cpuPath.getFileName().toString().substring(3));
+                llcs.put(cpu, readLlc(cpuPath, cpu));
+                nodes.put(cpu, readNode(cpuPath));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new CpuTopology(Collections.unmodifiableMap(llcs), Collections.unmodifiableMap(nodes));
+    }
+
+    /** Id of the highest level cache, the CPU itself if there is no cache info */
+    private static int readLlc(Path cpuPath, int cpu) throws IOException {
+        Path cacheDir = cpuPath.resolve("cache");
+        if (!Files.isDirectory(cacheDir)) {
+            return cpu;
+        }
+        int maxLevel = -1;
+        int llc = cpu;
+        try (Stream<Path> indexes = Files.list(cacheDir)) {
+            for (Path index : indexes.filter(path -> path.getFileName().toString().startsWith("index")).toList()) {
+                int level = Integer.parseInt(Files.readString(index.resolve("level")).strip());
+                if (level > maxLevel) {
+                    maxLevel = level;
+                    llc = readCacheId(index, cpu);
+                }
+            }
+        }
+        return llc;
+    }
+
+    /** The {@code id} of the cache or the first CPU sharing it, if the former is not available */
+    private static int readCacheId(Path index, int cpu) throws IOException {
+        Path id = index.resolve("id");
+        if (Files.exists(id)) {
+            return Integer.parseInt(Files.readString(id).strip());
+        }
+        Path shared = index.resolve("shared_cpu_list");
+        if (Files.exists(shared)) {
+            return Integer.parseInt(Files.readString(shared).strip().split("[,-]")[0]);
+        }
+        return cpu;
+    }
+
+    /** Node from the {@code nodeN} link in the CPU directory, 0 if not present */
+    private static int readNode(Path cpuPath) throws IOException {
+        try (Stream<Path> entries = Files.list(cpuPath)) {
+            return entries.map(path -> path.getFileName().toString())
+                    .filter(name -> name.matches("node\\d+"))
+                    .map(name -> Integer.parseInt(name.substring(4)))
+                    .findFirst()
+                    .orElse(0);
+        }
+    }
+
+    /**
+     * Number of topology levels that are worth distinguishing:
+     * 0 if all CPUs share a LLC, 1 if all CPUs are on the same node, else 2
+     */
+    public int levels() {
+        if (new HashSet<>(nodes.values()).size() > 1) {
+            return 2;
+        }
+        return new HashSet<>(llcs.values()).size() > 1 ? 1 : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "CpuTopology{cpus=" + llcs.size() + ", llcs=" + new HashSet<>(llcs.values()).size() +
+                ", nodes=" + new HashSet<>(nodes.values()).size() + "}";
+    }
+}
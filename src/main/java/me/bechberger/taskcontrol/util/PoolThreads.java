@@ -0,0 +1,76 @@
+package me.bechberger.taskcontrol.util;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Find the current worker threads of thread pools */
+public class PoolThreads {
+
+    /**
+     * Get the live worker threads of a {@link ForkJoinPool} or {@link ThreadPoolExecutor}
+     * @throws IllegalArgumentException if the pool type is not supported or its workers are not accessible
+     */
+    public static List<Thread> getWorkers(ExecutorService pool) {
+        if (pool instanceof ForkJoinPool forkJoinPool) {
+            return getAllThreads().stream()
+                    .filter(thread -> thread instanceof ForkJoinWorkerThread worker && worker.getPool() == forkJoinPool)
+                    .toList();
+        }
+        if (pool instanceof ThreadPoolExecutor executor) {
+            return getWorkers(executor);
+        }
+        throw new IllegalArgumentException("Unsupported pool type " + pool.getClass().getName() +
+                ", use the thread based methods instead");
+    }
+
+    /** Requires {@code --add-opens java.base/java.util.concurrent=ALL-UNNAMED} */
+    private static List<Thread> getWorkers(ThreadPoolExecutor executor) {
+        try {
+            Field workersField = ThreadPoolExecutor.class.getDeclaredField("workers");
+            workersField.setAccessible(true);
+            Field mainLockField = ThreadPoolExecutor.class.getDeclaredField("mainLock");
+            mainLockField.setAccessible(true);
+            var mainLock = (ReentrantLock) mainLockField.get(executor);
+            List<Thread> threads = new ArrayList<>();
+            mainLock.lock();
+            try {
+                for (Object worker : (Collection<?>) workersField.get(executor)) {
+                    Field threadField = worker.getClass().getDeclaredField("thread");
+                    threadField.setAccessible(true);
+                    Thread thread = (Thread) threadField.get(worker);
+                    if (thread != null && thread.isAlive()) {
+                        threads.add(thread);
+                    }
+                }
+            } finally {
+                mainLock.unlock();
+            }
+            return threads;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new IllegalArgumentException("Cannot access the workers of the ThreadPoolExecutor, " +
+                    "add --add-opens java.base/java.util.concurrent=ALL-UNNAMED", e);
+        }
+    }
+
+    /** All live platform threads of this JVM */
+    public static List<Thread> getAllThreads() {
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        Thread[] threads = new Thread[root.activeCount() + 16];
+        int count;
+        while ((count = root.enumerate(threads, true)) == threads.length) {
+            threads = new Thread[threads.length * 2];
+        }
+        return Arrays.asList(threads).subList(0, count);
+    }
+}
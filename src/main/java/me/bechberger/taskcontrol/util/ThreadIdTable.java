@@ -0,0 +1,145 @@
+package me.bechberger.taskcontrol.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Map from Java thread ids to OS thread ids with lock-free reads
+ * <p>
+ * Open addressing with linear probing over a fixed number of slots. Writers are serialized,
+ * removed entries are kept as tombstones that later insertions reuse, and the slots are rebuilt
+ * without tombstones once a quarter of them are tombstones, so that lookups of unknown threads
+ * stay short even after many threads came and went. A slot's value is set before its key,
+ * readers treat a missing value (0 is never a valid OS thread id) as unknown.
+ */
+public class ThreadIdTable {
+
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = -1;
+
+    /** @param keys Java thread id + 1, so that 0 can denote an empty slot */
+    private record Slots(AtomicLongArray keys, AtomicLongArray values) {
+
+        Slots(int size) {
+            this(new AtomicLongArray(size), new AtomicLongArray(size));
+        }
+    }
+
+    /** Replaced when rebuilding, readers might briefly see the old slots */
+    private volatile Slots slots;
+    private final int mask;
+    /** Number of tombstones in the current slots, guarded by {@code this} */
+    private int tombstones;
+
+    /**
+     * @param capacity number of slots, rounded up to the next power of two
+     */
+    public ThreadIdTable(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity has to be positive, got " + capacity);
+        }
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new Slots(size);
+        this.mask = size - 1;
+    }
+
+    private int index(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Probe till the first empty slot
+     * @return the slot of the key, else the first tombstone or empty slot, or -1 if there is neither
+     */
+    private int probe(Slots current, long key) {
+        int start = index(key);
+        int free = -1;
+        for (int i = 0; i <= mask; i++) {
+            int slot = (start + i) & mask;
+            long k = current.keys().get(slot);
+            if (k == key) {
+                return slot;
+            }
+            if (k == TOMBSTONE && free == -1) {
+                free = slot;
+            }
+            if (k == EMPTY) {
+                return free == -1 ? slot : free;
+            }
+        }
+        return free;
+    }
+
+    /**
+     * Store the OS thread id for the Java thread id
+     * @return false if the table is full
+     */
+    public synchronized boolean put(long javaThreadId, long osThreadId) {
+        long key = javaThreadId + 1;
+        var current = slots;
+        int slot = probe(current, key);
+        if (slot == -1) {
+            return false;
+        }
+        long previous = current.keys().get(slot);
+        current.values().set(slot, osThreadId);
+        if (previous != key) {
+            current.keys().set(slot, key);
+            if (previous == TOMBSTONE) {
+                tombstones--;
+            }
+        }
+        return true;
+    }
+
+    /** @return OS thread id or -1 if unknown */
+    public long get(long javaThreadId) {
+        long key = javaThreadId + 1;
+        var current = slots;
+        int start = index(key);
+        for (int i = 0; i <= mask; i++) {
+            int slot = (start + i) & mask;
+            long k = current.keys().get(slot);
+            if (k == key) {
+                long value = current.values().get(slot);
+                return value == EMPTY ? -1 : value;
+            }
+            if (k == EMPTY) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized void remove(long javaThreadId) {
+        long key = javaThreadId + 1;
+        var current = slots;
+        int slot = probe(current, key);
+        if (slot == -1 || current.keys().get(slot) != key) {
+            return;
+        }
+        current.keys().set(slot, TOMBSTONE);
+        current.values().set(slot, EMPTY);
+        tombstones++;
+        if (tombstones > (mask + 1) / 4) {
+            rebuild();
+        }
+    }
+
+    /** Copy all entries into new slots without tombstones */
+    private void rebuild() {
+        var old = slots;
+        var rebuilt = new Slots(mask + 1);
+        for (int i = 0; i <= mask; i++) {
+            long key = old.keys().get(i);
+            if (key == EMPTY || key == TOMBSTONE) {
+                continue;
+            }
+            int slot = probe(rebuilt, key);
+            rebuilt.values().set(slot, old.values().get(i));
+            rebuilt.keys().set(slot, key);
+        }
+        slots = rebuilt;
+        tombstones = 0;
+    }
+}
@@ -0,0 +1,57 @@
+package me.bechberger.taskcontrol.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Registers the OS thread id of every platform thread when it starts running,
+ * called at the beginning of {@code Thread.run} by the {@link ThreadStartTransformer}
+ * <p>
+ * Loaded by the bootstrap class loader when the agent instruments threads, so that {@code java.lang.Thread}
+ * can call it, it must therefore only use JDK classes and {@link ThreadIdTable}.
+ */
+public final class ThreadStartHook {
+
+    /** Table the threads register in, null if the agent isn't started */
+    private static volatile ThreadIdTable table;
+
+    private static final AtomicBoolean fullWarned = new AtomicBoolean(false);
+
+    private ThreadStartHook() {
+    }
+
+    public static void setTable(ThreadIdTable newTable) {
+        table = newTable;
+    }
+
+    public static void onThreadStart() {
+        var currentTable = table;
+        if (currentTable == null || Thread.currentThread().isVirtual()) {
+            return;
+        }
+        long osId = currentOsId();
+        if (osId > 0) {
+            put(currentTable, Thread.currentThread().threadId(), osId);
+        }
+    }
+
+    /** Put the ids into the table, printing a warning once if it is full */
+    public static void put(ThreadIdTable table, long javaThreadId, long osThreadId) {
+        if (!table.put(javaThreadId, osThreadId) && fullWarned.compareAndSet(false, true)) {
+            System.err.println("ThreadAgent: thread id table is full, increase its capacity via "
+                    + "-javaagent:taskcontrol.jar=capacity, falling back to thread dumps for new threads");
+        }
+    }
+
+    /** @return OS thread id of the current thread or -1 if {@code /proc} is not available */
+    public static long currentOsId() {
+        try {
+            // links to /proc/PID/task/TID
+            return Long.parseLong(Files.readSymbolicLink(Path.of("/proc/thread-self")).getFileName().toString());
+        } catch (IOException | UnsupportedOperationException | NumberFormatException | SecurityException e) {
+            return -1;
+        }
+    }
+}
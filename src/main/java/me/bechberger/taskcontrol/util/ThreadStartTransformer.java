@@ -0,0 +1,73 @@
+package me.bechberger.taskcontrol.util;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inserts a call to {@link ThreadStartHook#onThreadStart()} at the beginning of {@code run()}
+ * of {@code java.lang.Thread} and its subclasses
+ * <p>
+ * Classes that are loaded after the transformer has been added are only recognized as subclasses
+ * if their super class has already been transformed, so the {@code run} methods of deeper
+ * hierarchies might not be instrumented. Their threads are then registered via JFR as before.
+ */
+public class ThreadStartTransformer implements ClassFileTransformer {
+
+    private static final String HOOK = "me/bechberger/taskcontrol/util/ThreadStartHook";
+
+    /** Internal names of the classes known to extend {@code java.lang.Thread} */
+    private final Set<String> threadClasses = ConcurrentHashMap.newKeySet();
+
+    public ThreadStartTransformer() {
+        threadClasses.add("java/lang/Thread");
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (className == null) {
+            return null;
+        }
+        try {
+            ClassReader reader = new ClassReader(classfileBuffer);
+            boolean isThread = classBeingRedefined != null ? Thread.class.isAssignableFrom(classBeingRedefined)
+                    : threadClasses.contains(className) || threadClasses.contains(reader.getSuperName());
+            if (!isThread) {
+                return null;
+            }
+            threadClasses.add(className);
+            ClassWriter writer = new ClassWriter(reader, 0);
+            reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                                 String[] exceptions) {
+                    MethodVisitor visitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+                    if (!name.equals("run") || !descriptor.equals("()V")
+                            || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+                        return visitor;
+                    }
+                    return new MethodVisitor(Opcodes.ASM9, visitor) {
+                        @Override
+                        public void visitCode() {
+                            super.visitCode();
+                            // no arguments and no result, so the max stack and the frames stay valid
+                            super.visitMethodInsn(Opcodes.INVOKESTATIC, HOOK, "onThreadStart", "()V", false);
+                        }
+                    };
+                }
+            }, 0);
+            return writer.toByteArray();
+        } catch (Throwable t) {
+            // never break class loading, the thread is then registered via JFR
+            return null;
+        }
+    }
+}
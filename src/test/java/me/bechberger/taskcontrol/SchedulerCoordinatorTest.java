@@ -0,0 +1,99 @@
+package me.bechberger.taskcontrol;
+
+import me.bechberger.taskcontrol.SchedulerCoordinator.HostResult;
+import me.bechberger.taskcontrol.SchedulerCoordinator.Result;
+import me.bechberger.taskcontrol.SchedulerCoordinator.Target;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SchedulerCoordinatorTest {
+
+    private static final Instant T0 = Instant.ofEpochSecond(1_700_000_000, 123_456_789);
+
+    private static HostResult host(String name, long appliedAtMicros) {
+        return new HostResult(new Target(name, 8087, List.of(1L)), "ok", T0.plusNanos(appliedAtMicros * 1000),
+                Duration.ofMillis(1));
+    }
+
+    @Test
+    void parseTarget() {
+        assertEquals(new Target("node1", 8087, List.of(42L, 43L)), Target.parse("node1:8087:42,43"));
+        assertEquals(new Target("localhost", 1, List.of(7L)), Target.parse("localhost:1:7,"));
+        assertEquals("node1:8087", Target.parse("node1:8087:42").toString());
+    }
+
+    @Test
+    void parseInvalidTarget() {
+        assertThrows(IllegalArgumentException.class, () -> Target.parse("node1:8087"));
+        assertThrows(IllegalArgumentException.class, () -> Target.parse("node1:port:42"));
+        assertThrows(IllegalArgumentException.class, () -> Target.parse("node1:8087:42,x"));
+        assertThrows(IllegalArgumentException.class, () -> Target.parse("node1:8087:42:43"));
+    }
+
+    @Test
+    void skewAndOffsets() {
+        var a = host("a", 300);
+        var b = host("b", 100);
+        var c = host("c", 1100);
+        var result = new Result(List.of(a, b, c));
+        assertEquals(Duration.ofMillis(1), result.skew());
+        assertEquals(Duration.ZERO, result.offset(b));
+        assertEquals(Duration.ofNanos(200_000), result.offset(a));
+        assertEquals(Duration.ofMillis(1), result.offset(c));
+        assertTrue(result.ok());
+    }
+
+    @Test
+    void failedHost() {
+        var result = new Result(List.of(host("a", 0),
+                new HostResult(new Target("b", 8087, List.of()), "Bad Request", T0, Duration.ZERO)));
+        assertFalse(result.ok());
+        assertEquals(Duration.ZERO, result.skew());
+    }
+
+    @Test
+    void clockOffset() {
+        // the server read its clock, which is 5ms ahead, in the middle of the 2ms round trip
+        assertEquals(Duration.ofMillis(5),
+                SchedulerCoordinator.clockOffset(T0, Duration.ofMillis(2), T0.plusMillis(6)));
+        assertEquals(Duration.ofMillis(-3),
+                SchedulerCoordinator.clockOffset(T0, Duration.ofMillis(2), T0.minusMillis(2)));
+    }
+
+    @Test
+    void appliedAt() {
+        Duration offset = Duration.ofMillis(5);
+        assertEquals(T0.plusMillis(1),
+                SchedulerCoordinator.appliedAt(T0, Duration.ofMillis(4), T0.plusMillis(6), offset));
+        // falls back to the middle of the request without an Applied-At header
+        assertEquals(T0.plusMillis(2), SchedulerCoordinator.appliedAt(T0, Duration.ofMillis(4), null, offset));
+    }
+
+    @Test
+    void appliedAtHeader() {
+        // the Applied-At header and startAt are nanoseconds since the epoch
+        assertEquals(T0, SchedulerServer.parseEpochNanos("1700000000123456789"));
+        assertEquals(T0, SchedulerServer.parseEpochNanos(" 1700000000123456789\n"));
+        assertEquals(1_700_000_000_123_456_789L, SchedulerServer.epochNanos(T0));
+        assertEquals(T0, SchedulerServer.parseEpochNanos(String.valueOf(SchedulerServer.epochNanos(T0))));
+        assertThrows(NumberFormatException.class, () -> SchedulerServer.parseEpochNanos("1.5"));
+    }
+
+    @Test
+    void parseDuration() {
+        assertEquals(Duration.ofNanos(10), SchedulerServer.parseDuration("10ns"));
+        assertEquals(Duration.ofNanos(1500), SchedulerServer.parseDuration("1.5us"));
+        assertEquals(Duration.ofMillis(500), SchedulerServer.parseDuration("500ms"));
+        assertEquals(Duration.ofSeconds(2), SchedulerServer.parseDuration("2s"));
+        assertEquals(Duration.ofMillis(2500), SchedulerServer.parseDuration("2.5s"));
+        assertThrows(IllegalArgumentException.class, () -> SchedulerServer.parseDuration("500"));
+        assertThrows(IllegalArgumentException.class, () -> SchedulerServer.parseDuration("-5ms"));
+        assertThrows(IllegalArgumentException.class, () -> SchedulerServer.parseDuration("5 ms"));
+        assertThrows(IllegalArgumentException.class, () -> SchedulerServer.parseDuration("5m"));
+    }
+}
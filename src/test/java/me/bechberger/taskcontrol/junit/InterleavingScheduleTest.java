@@ -0,0 +1,93 @@
+package me.bechberger.taskcontrol.junit;
+
+import me.bechberger.taskcontrol.junit.InterleavingSchedule.Step;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InterleavingScheduleTest {
+
+    private static Step step(long millis, String... stopped) {
+        return new Step(Set.of(stopped), Duration.ofMillis(millis));
+    }
+
+    private static final InterleavingSchedule WRITER_FIRST = new InterleavingSchedule(List.of("writer", "reader"),
+            List.of(step(5, "writer"), step(10)));
+
+    @Test
+    void plan() {
+        assertEquals("0.005s,0.01r", WRITER_FIRST.plan("writer"));
+        assertEquals("0.015r", WRITER_FIRST.plan("reader"));
+        assertEquals("writer=0.005s,0.01r;reader=0.015r", WRITER_FIRST.toString());
+    }
+
+    @Test
+    void planMergesStepsWithTheSameStatus() {
+        var schedule = new InterleavingSchedule(List.of("a"), List.of(step(5, "a"), step(5, "a"), step(1000)));
+        assertEquals("0.01s,1r", schedule.plan("a"));
+    }
+
+    @Test
+    void duration() {
+        assertEquals(Duration.ofMillis(15), WRITER_FIRST.duration());
+    }
+
+    @Test
+    void parseRoundTrip() {
+        assertEquals(WRITER_FIRST, InterleavingSchedule.parse(WRITER_FIRST.toString()));
+    }
+
+    @Test
+    void parseSplitsAtAllBoundaries() {
+        var schedule = InterleavingSchedule.parse("a=0.01s,0.01r;b=0.005r,0.015s");
+        assertEquals(List.of("a", "b"), schedule.threads());
+        assertEquals(List.of(step(5, "a"), step(5, "a", "b"), step(10, "b")), schedule.steps());
+    }
+
+    @Test
+    void parseInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> InterleavingSchedule.parse("writer"));
+        assertThrows(IllegalArgumentException.class, () -> InterleavingSchedule.parse("writer=5x"));
+        assertThrows(IllegalArgumentException.class, () -> InterleavingSchedule.parse("writer=0.005s,"));
+    }
+
+    @Test
+    void invalidSchedules() {
+        assertThrows(IllegalArgumentException.class, () -> new InterleavingSchedule(List.of("a"), List.of()));
+        assertThrows(IllegalArgumentException.class, () -> step(0, "a"));
+    }
+
+    @Test
+    void shrink() {
+        var schedule = new InterleavingSchedule(List.of("a", "b"), List.of(step(5, "a"), step(5, "a", "b")));
+        var smaller = schedule.shrink();
+        assertEquals(5, smaller.size());
+        // first without a step, then with one stopped thread less
+        assertEquals(List.of(step(5, "a", "b")), smaller.get(0).steps());
+        assertEquals(List.of(step(5, "a")), smaller.get(1).steps());
+        assertEquals(List.of(step(5), step(5, "a", "b")), smaller.get(2).steps());
+        assertTrue(smaller.contains(new InterleavingSchedule(List.of("a", "b"), List.of(step(5, "a"), step(5, "a")))));
+        assertTrue(smaller.contains(new InterleavingSchedule(List.of("a", "b"), List.of(step(5, "a"), step(5, "b")))));
+        for (var shrunk : smaller) {
+            assertEquals(schedule.threads(), shrunk.threads());
+        }
+    }
+
+    @Test
+    void shrinkMinimal() {
+        assertEquals(List.of(), new InterleavingSchedule(List.of("a"), List.of(step(5))).shrink());
+    }
+
+    @Test
+    void exhaustive() {
+        var schedules = InterleavingSchedule.exhaustive(List.of("a", "b"), 2, 1, 100);
+        assertEquals(9, schedules.size());
+        assertEquals(List.of(step(1), step(1)), schedules.getFirst().steps());
+        assertEquals(9, Set.copyOf(schedules).size());
+        assertEquals(4, InterleavingSchedule.exhaustive(List.of("a", "b"), 2, 1, 4).size());
+    }
+}
@@ -0,0 +1,115 @@
+package me.bechberger.taskcontrol.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThreadIdTableTest {
+
+    @Test
+    void putGetRemove() {
+        var table = new ThreadIdTable(16);
+        assertEquals(-1, table.get(1));
+        assertTrue(table.put(1, 100));
+        assertTrue(table.put(2, 200));
+        assertEquals(100, table.get(1));
+        assertEquals(200, table.get(2));
+        assertTrue(table.put(1, 101));
+        assertEquals(101, table.get(1));
+        table.remove(1);
+        assertEquals(-1, table.get(1));
+        assertEquals(200, table.get(2));
+        table.remove(1);
+        assertEquals(200, table.get(2));
+    }
+
+    @Test
+    void javaThreadIdZero() {
+        var table = new ThreadIdTable(4);
+        assertTrue(table.put(0, 100));
+        assertEquals(100, table.get(0));
+    }
+
+    @Test
+    void capacityIsRoundedUp() {
+        var table = new ThreadIdTable(3);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(table.put(i, 100 + i));
+        }
+        assertFalse(table.put(4, 104));
+        assertThrows(IllegalArgumentException.class, () -> new ThreadIdTable(0));
+    }
+
+    @Test
+    void fullTable() {
+        var table = new ThreadIdTable(8);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(table.put(i, 100 + i));
+        }
+        assertFalse(table.put(8, 108));
+        assertEquals(-1, table.get(8));
+        // updating an existing entry still works
+        assertTrue(table.put(3, 42));
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i == 3 ? 42 : 100 + i, table.get(i));
+        }
+    }
+
+    @Test
+    void tombstonesAreReused() {
+        var table = new ThreadIdTable(8);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(table.put(i, 100 + i));
+        }
+        table.remove(5);
+        assertTrue(table.put(8, 108));
+        assertFalse(table.put(9, 109));
+        assertEquals(108, table.get(8));
+        assertEquals(-1, table.get(5));
+    }
+
+    @Test
+    void reinsertedKeyIsNotDuplicated() {
+        var table = new ThreadIdTable(8);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(table.put(i, 100 + i));
+        }
+        table.remove(2);
+        // a key behind the tombstone is updated in place instead of taking the tombstone
+        for (int i = 0; i < 8; i++) {
+            if (i != 2) {
+                assertTrue(table.put(i, 200 + i));
+            }
+        }
+        assertTrue(table.put(2, 202));
+        for (int i = 0; i < 8; i++) {
+            assertEquals(200 + i, table.get(i));
+        }
+    }
+
+    @Test
+    void missesAfterChurn() {
+        var table = new ThreadIdTable(64);
+        // long living threads
+        for (int i = 0; i < 16; i++) {
+            assertTrue(table.put(i, 1000 + i));
+        }
+        // many short living threads, more than the capacity
+        for (int i = 16; i < 10_000; i++) {
+            assertTrue(table.put(i, 1000 + i));
+            if (i >= 20) {
+                table.remove(i - 4);
+            }
+        }
+        for (int i = 0; i < 16; i++) {
+            assertEquals(1000 + i, table.get(i));
+        }
+        for (int i = 9996; i < 10_000; i++) {
+            assertEquals(1000 + i, table.get(i));
+        }
+        for (int i = 16; i < 9996; i++) {
+            assertEquals(-1, table.get(i));
+        }
+        assertEquals(-1, table.get(20_000));
+    }
+}